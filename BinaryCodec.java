@@ -0,0 +1,481 @@
+import org.apache.commons.lang3.SerializationUtils;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.TreeSet;
+
+/** Versioned binary encoding of blocks, block headers, file headers and transactions (used for LevelDB values and network payloads).
+ *
+ *  Every value starts with:  version (1) | type (1)
+ *      block:          header (104) | txs (see below)
+ *      indexBlock:     header (104) | fileNumber (4) | offset (8) | length (4)     (version 1 has no offset/length)
+ *      indexFile:      numBlocks (4) | lowIndex (8) | highIndex (8) | lowWork (8) | highWork (8) | earlyDate (8) | lateDate (8)
+ *      transaction:    date (8) | nonce (8) | cohort
+ *      list:           number of elements (4) | elements (without version/type)
+ *
+ *  'header' is exactly the binary block header that is hashed (see Hashing.writeHeader), dates are epoch millis and
+ *  a cohort made of '0'/'1' characters is packed 8 bits to a byte behind its length in bits (a 50 bit cohort takes 9 bytes).
+ *
+ *  The txs of a block are written in one of three ways (version 1 and 2 always use the 'plain' layout without the mode byte):
+ *      none:           mode (1) = 0                                                           (txs not set)
+ *      plain:          mode (1) = 1 | number of txs (4) | txs
+ *      compact:        mode (1) = 2 | number of txs (varint) | cohort length in bits (1) | per tx, sorted by cohort:
+ *                          cohort - previous cohort (varint) | block date - tx date (zigzag varint) | nonce (varint)
+ *  'compact' is used when every cohort is a '0'/'1' string of the same length (up to 63 bits), so a cohort is a number
+ *  and the sorted cohorts of a block only differ by small amounts. A block of 1000 random 50 bit cohorts takes ~13 bytes
+ *  per tx this way, instead of 25 with 'plain' (the txs are a set, so the order they are written in doesn't matter).
+ *  varints are unsigned LEB128, 7 bits per byte with the highest bit set on every byte but the last.
+ *
+ *  Values written with Java serialization (before this codec) start with 0xACED and are still read, see isLegacy() */
+public class BinaryCodec {
+    public static final byte VERSION = 3;
+
+    private static final byte BLOCK = 1;
+    private static final byte HEADER = 2;
+    private static final byte FILE = 3;
+    private static final byte TRANSACTION = 4;
+    private static final byte BLOCK_LIST = 5;
+    private static final byte HEADER_LIST = 6;
+
+    private static final short UNPACKED = -1;  // cohort length marker for cohorts that aren't made of '0'/'1' characters
+
+    private static final byte NO_TXS = 0;       // block tx modes, see above
+    private static final byte PLAIN_TXS = 1;
+    private static final byte COMPACT_TXS = 2;
+
+    private static final int MAX_VARLONG = 10;
+
+    /** Checks whether an object can be encoded by the codec
+     * @param o The object we want to encode
+     * @return Returns whether encode() supports the object (true) or not (false)
+     */
+    public static boolean canEncode(Object o) {
+        if(o instanceof Block || o instanceof indexBlock || o instanceof indexFile || o instanceof Transaction) {
+            return true;
+        }
+        if(o instanceof LinkedList && !((LinkedList) o).isEmpty()) {
+            Object first = ((LinkedList) o).getFirst();
+            return first instanceof Block || first instanceof indexBlock;
+        }
+        return false;
+    }
+
+    /** Encodes a block, block header, file header, transaction or a LinkedList of blocks/block headers
+     * @param o The object we want to encode
+     * @return Returns the encoded object
+     */
+    public static byte[] encode(Object o) {
+        if(!canEncode(o)) {
+            throw new IllegalArgumentException("can't encode: " + o);
+        }
+
+        // the size is known up front (exactly, or at most for compact txs), so everything is written into one array
+        ByteBuffer out = ByteBuffer.allocate(2 + sizeOf(o));
+        out.put(VERSION);
+
+        if(o instanceof Block) {
+            out.put(BLOCK);
+            writeBlock(out, (Block) o);
+        }
+        else if(o instanceof indexBlock) {
+            out.put(HEADER);
+            writeHeader(out, (indexBlock) o);
+        }
+        else if(o instanceof indexFile) {
+            out.put(FILE);
+            writeFile(out, (indexFile) o);
+        }
+        else if(o instanceof Transaction) {
+            out.put(TRANSACTION);
+            writeTransaction(out, (Transaction) o);
+        }
+        else {
+            LinkedList<?> list = (LinkedList<?>) o;
+            boolean blocks = list.getFirst() instanceof Block;
+            out.put(blocks ? BLOCK_LIST : HEADER_LIST);
+            out.putInt(list.size());
+            for(Object e : list) {
+                if(blocks) {
+                    writeBlock(out, (Block) e);
+                }
+                else {
+                    writeHeader(out, (indexBlock) e);
+                }
+            }
+        }
+        return (out.position() == out.capacity()) ? out.array() : Arrays.copyOf(out.array(), out.position());
+    }
+
+    /** Decodes an object written by encode(), or by Java serialization for values stored before the codec existed
+     * @param data The encoded object
+     * @return Returns the decoded object (Block, indexBlock, indexFile, Transaction or LinkedList)
+     */
+    public static Object decode(byte[] data) {
+        if(isLegacy(data)) {
+            return SerializationUtils.deserialize(data);
+        }
+        return decode(ByteBuffer.wrap(data));
+    }
+
+    /** Decodes an object written by encode() straight from a buffer (eg. a slice of a mapped block file)
+     * @param in The buffer, from its position to its limit
+     * @return Returns the decoded object (Block, indexBlock, indexFile, Transaction or LinkedList)
+     */
+    public static Object decode(ByteBuffer in) {
+        try {
+            byte version = in.get();
+            if(version < 1 || version > VERSION) {
+                throw new IllegalArgumentException("unknown codec version: " + version);
+            }
+
+            byte type = in.get();
+            switch(type) {
+                case BLOCK:
+                    return readBlock(in, version);
+                case HEADER:
+                    return readHeader(in, version);
+                case FILE:
+                    return readFile(in);
+                case TRANSACTION:
+                    return readTransaction(in);
+                case BLOCK_LIST:
+                case HEADER_LIST:
+                    int size = in.getInt();
+                    LinkedList<Object> list = new LinkedList<>();
+                    for(int x = 0; x < size; x++) {
+                        list.add((type == BLOCK_LIST) ? readBlock(in, version) : readHeader(in, version));
+                    }
+                    return list;
+                default:
+                    throw new IllegalArgumentException("unknown codec type: " + type);
+            }
+        } catch(BufferUnderflowException bue) {
+            throw new IllegalArgumentException("truncated codec value");
+        }
+    }
+
+    /** Checks whether a value was written with Java serialization (stream magic 0xACED) instead of the codec
+     * @param data The stored value
+     * @return Returns whether the value uses the old encoding (true) or not (false)
+     */
+    public static boolean isLegacy(byte[] data) {
+        return data.length >= 2 && data[0] == (byte) 0xAC && data[1] == (byte) 0xED;
+    }
+
+    /** Returns the number of bytes an object takes up, without the version and type (for blocks with compact txs,
+     *  the most it can take up) */
+    private static int sizeOf(Object o) {
+        if(o instanceof Block) {
+            int size = Hashing.HEADER_SIZE + 1;
+            Collection<Transaction> txs = ((Block) o).getTransactions();
+            if(txs != null) {
+                size += 5 + 1;      // count (up to a 5 byte varint) and cohort length
+                for(Transaction tx : txs) {
+                    size += Math.max(sizeOf(tx), 3 * MAX_VARLONG);
+                }
+            }
+            return size;
+        }
+        if(o instanceof indexBlock) {
+            return Hashing.HEADER_SIZE + 4 + 8 + 4;
+        }
+        if(o instanceof indexFile) {
+            return 4 + 6 * 8;
+        }
+        if(o instanceof Transaction) {
+            String cohort = ((Transaction) o).getCohort();
+            return 8 + 8 + 2 + (isBits(cohort) ? (cohort.length() + 7) / 8 : 2 + cohort.getBytes(StandardCharsets.UTF_8).length);
+        }
+
+        int size = 4;
+        for(Object e : (LinkedList<?>) o) {
+            size += sizeOf(e);
+        }
+        return size;
+    }
+
+    private static void writeBlock(ByteBuffer out, Block b) {
+        Hashing.writeHeader(b, out.array(), out.position());
+        out.position(out.position() + Hashing.HEADER_SIZE);
+
+        Collection<Transaction> txs = b.getTransactions();
+        if(txs == null) {
+            out.put(NO_TXS);
+            return;
+        }
+
+        int bits = compactBits(txs);
+        if(bits < 0) {
+            out.put(PLAIN_TXS);
+            out.putInt(txs.size());
+            for(Transaction tx : txs) {
+                writeTransaction(out, tx);
+            }
+            return;
+        }
+
+        // cohort, date and nonce of every tx, sorted by cohort
+        long blockDate = Hashing.dateToMillis(b.getDate());
+        long[][] rows = new long[txs.size()][];
+        int x = 0;
+        for(Transaction tx : txs) {
+            rows[x++] = new long[] { toBits(tx.getCohort()), Hashing.dateToMillis(tx.getDate()), tx.getNonce() };
+        }
+        Arrays.sort(rows, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] r1, long[] r2) {
+                return Long.compare(r1[0], r2[0]);
+            }
+        });
+
+        out.put(COMPACT_TXS);
+        putVarLong(out, rows.length);
+        out.put((byte) bits);
+        long previous = 0;
+        for(long[] row : rows) {
+            putVarLong(out, row[0] - previous);
+            putVarLong(out, zigzag(blockDate - row[1]));
+            putVarLong(out, row[2]);
+            previous = row[0];
+        }
+    }
+
+    private static Block readBlock(ByteBuffer in, byte version) {
+        long index = in.getLong();
+        long blockDate = in.getLong();
+        String date = Hashing.millisToDate(blockDate);
+        String prevHash = readHash(in, "GENESIS");
+        String mr = readHash(in, "empty");
+        long difficulty = in.getLong();
+        long totalDifficulty = in.getLong();
+        long nonce = in.getLong();
+        Block b = new Block(index, date, prevHash, nonce, difficulty, mr, totalDifficulty);
+
+        // versions before 3 have no mode, only a tx count that is -1 when there are no txs
+        byte mode = (version >= 3) ? in.get() : PLAIN_TXS;
+        if(mode == NO_TXS) {
+            return b;
+        }
+
+        TreeSet<Transaction> txs = new TreeSet<>();
+        if(mode == PLAIN_TXS) {
+            int count = in.getInt();
+            if(count < 0) {
+                return b;
+            }
+            for(int x = 0; x < count; x++) {
+                txs.add(readTransaction(in));
+            }
+        }
+        else if(mode == COMPACT_TXS) {
+            long count = getVarLong(in);
+            int bits = in.get();
+            // every tx takes at least 3 bytes (one per varint)
+            if(bits < 1 || bits > 63 || count < 0 || count > in.remaining() / 3) {
+                throw new IllegalArgumentException("bad compact txs: " + count + " cohorts of " + bits + " bits");
+            }
+            long cohort = 0;
+            for(long x = 0; x < count; x++) {
+                cohort += getVarLong(in);
+                long txDate = blockDate - unzigzag(getVarLong(in));
+                long txNonce = getVarLong(in);
+                txs.add(new Transaction(Hashing.millisToDate(txDate), fromBits(cohort, bits), txNonce));
+            }
+        }
+        else {
+            throw new IllegalArgumentException("unknown block tx mode: " + mode);
+        }
+        b.setTransactions(txs);
+        return b;
+    }
+
+    /** Checks whether the txs of a block can be written compact
+     * @param txs The txs of the block
+     * @return Returns the length of their cohorts in bits, or -1 if they aren't all '0'/'1' cohorts of the same length up to 63 bits
+     */
+    private static int compactBits(Collection<Transaction> txs) {
+        int bits = -1;
+        for(Transaction tx : txs) {
+            String cohort = tx.getCohort();
+            if(cohort.isEmpty() || cohort.length() > 63 || (bits != -1 && cohort.length() != bits) || !isBits(cohort)) {
+                return -1;
+            }
+            bits = cohort.length();
+        }
+        return (bits == -1) ? 1 : bits;
+    }
+
+    /** Turns a '0'/'1' cohort into a number, first character in the highest bit */
+    private static long toBits(String cohort) {
+        long value = 0;
+        for(int x = 0; x < cohort.length(); x++) {
+            value = (value << 1) | (cohort.charAt(x) - '0');
+        }
+        return value;
+    }
+
+    /** Turns a number back into a '0'/'1' cohort of 'bits' characters */
+    private static String fromBits(long value, int bits) {
+        char[] chars = new char[bits];
+        for(int x = bits - 1; x >= 0; x--) {
+            chars[x] = (char) ('0' + (value & 1));
+            value >>>= 1;
+        }
+        return new String(chars);
+    }
+
+    private static void putVarLong(ByteBuffer out, long value) {
+        while((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("varint too long");
+    }
+
+    /** Maps signed numbers to unsigned ones so small negative numbers stay short as varints (0, -1, 1, -2 -> 0, 1, 2, 3) */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeHeader(ByteBuffer out, indexBlock ib) {
+        Hashing.writeHeader(ib, out.array(), out.position());
+        out.position(out.position() + Hashing.HEADER_SIZE);
+        out.putInt(ib.getFileNumber());
+        out.putLong(ib.getOffset());
+        out.putInt(ib.getLength());
+    }
+
+    private static indexBlock readHeader(ByteBuffer in, byte version) {
+        long index = in.getLong();
+        String date = Hashing.millisToDate(in.getLong());
+        String prevHash = readHash(in, "GENESIS");
+        String mr = readHash(in, "empty");
+        long difficulty = in.getLong();
+        long totalDifficulty = in.getLong();
+        long nonce = in.getLong();
+        int fileNumber = in.getInt();
+        indexBlock ib = new indexBlock(index, difficulty, totalDifficulty, fileNumber, date, prevHash, mr, nonce);
+        if(version >= 2) {
+            ib.setLocation(in.getLong(), in.getInt());
+        }
+        return ib;
+    }
+
+    private static void writeFile(ByteBuffer out, indexFile f) {
+        out.putInt(f.getNumBlocks());
+        out.putLong(f.getLowIndex());
+        out.putLong(f.getHighIndex());
+        out.putLong(f.getLowWork());
+        out.putLong(f.getHighWork());
+        out.putLong(Hashing.dateToMillis(f.getEarlyDate()));
+        out.putLong(Hashing.dateToMillis(f.getLateDate()));
+    }
+
+    private static indexFile readFile(ByteBuffer in) {
+        int numBlocks = in.getInt();
+        long lowIndex = in.getLong();
+        long highIndex = in.getLong();
+        long lowWork = in.getLong();
+        long highWork = in.getLong();
+        String earlyDate = Hashing.millisToDate(in.getLong());
+        String lateDate = Hashing.millisToDate(in.getLong());
+        return new indexFile(numBlocks, lowIndex, highIndex, lowWork, highWork, earlyDate, lateDate);
+    }
+
+    private static void writeTransaction(ByteBuffer out, Transaction tx) {
+        out.putLong(Hashing.dateToMillis(tx.getDate()));
+        out.putLong(tx.getNonce());
+
+        String cohort = tx.getCohort();
+        if(!isBits(cohort)) {
+            byte[] utf = cohort.getBytes(StandardCharsets.UTF_8);
+            out.putShort(UNPACKED);
+            out.putShort((short) utf.length);
+            out.put(utf);
+            return;
+        }
+
+        // pack the '0'/'1' characters 8 to a byte, first character in the highest bit
+        int off = out.position() + 2;
+        byte[] packed = out.array();
+        out.putShort((short) cohort.length());
+        for(int x = 0; x < cohort.length(); x++) {
+            if(cohort.charAt(x) == '1') {
+                packed[off + x / 8] |= (byte) (0x80 >>> (x % 8));
+            }
+        }
+        out.position(off + (cohort.length() + 7) / 8);
+    }
+
+    private static Transaction readTransaction(ByteBuffer in) {
+        String date = Hashing.millisToDate(in.getLong());
+        long nonce = in.getLong();
+
+        String cohort;
+        short bits = in.getShort();
+        if(bits == UNPACKED) {
+            byte[] utf = new byte[in.getShort() & 0xFFFF];
+            in.get(utf);
+            cohort = new String(utf, StandardCharsets.UTF_8);
+        }
+        else {
+            if(bits < 0 || (bits + 7) / 8 > in.remaining()) {
+                throw new IllegalArgumentException("bad cohort length: " + bits);
+            }
+            byte[] packed = new byte[(bits + 7) / 8];
+            in.get(packed);
+            char[] chars = new char[bits];
+            for(int x = 0; x < bits; x++) {
+                chars[x] = ((packed[x / 8] & (0x80 >>> (x % 8))) != 0) ? '1' : '0';
+            }
+            cohort = new String(chars);
+        }
+
+        return new Transaction(date, cohort, nonce);
+    }
+
+    /** Returns whether a cohort only contains '0'/'1' characters (and is short enough to have its length in a short) */
+    private static boolean isBits(String cohort) {
+        if(cohort.length() >= Short.MAX_VALUE) {
+            return false;
+        }
+        for(int x = 0; x < cohort.length(); x++) {
+            char c = cohort.charAt(x);
+            if(c != '0' && c != '1') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String readHash(ByteBuffer in, String none) {
+        byte[] hash = new byte[Hashing.HASH_SIZE];
+        in.get(hash);
+        for(byte h : hash) {
+            if(h != 0) {
+                return Hashing.toHex(hash);
+            }
+        }
+        return none;
+    }
+}
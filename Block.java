@@ -3,6 +3,7 @@ import java.text.SimpleDateFormat;
 import java.util.*;
 
 public class Block implements Serializable {
+    private static final long serialVersionUID = 5000406312468805579L;  // kept so blocks serialized by older versions can still be read
     public long index;
     public String date;
     public String previousHash;
@@ -0,0 +1,139 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/** Least recently used cache of decoded blocks or block headers, keyed by block hash and bounded by an estimate of the
+ *  heap what it holds takes (so a few large blocks can't push out every header). The encoded size doesn't bound memory,
+ *  a compact transaction takes ~13 bytes encoded but a few hundred once decoded (see footprint()).
+ *  Blocks and headers never change once stored under a hash, so nothing has to be invalidated, a header that gets a new
+ *  location is simply put again. The cached objects are shared, callers must not modify them */
+public class BlockCache<V> {
+    private final String name;
+    private final long maxBytes;
+    private final LinkedHashMap<String, cached<V>> entries = new LinkedHashMap<>(64, 0.75f, true);   // access order, eldest first
+    private long bytes = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    // rough heap sizes on a 64 bit JVM with compressed references, strings counted as Java 8 strings (char[])
+    private static final int STRING = 24 + 16;          // String object and the header of its char[]
+    private static final int TRANSACTION = 32 + 40;     // Transaction object and its TreeMap entry in the block
+    private static final int DIGEST = 16 + 32;          // the SHA256 a transaction caches once it is verified
+    private static final int BLOCK = 64 + 48 + 40;      // Block object, its TreeSet and TreeMap
+    private static final int HEADER = 72;               // indexBlock object
+
+    /**
+     * @param name The name shown in the statistics, eg. 'headers'
+     * @param maxBytes The max total footprint of the cached values
+     */
+    public BlockCache(String name, long maxBytes) {
+        this.name = name;
+        this.maxBytes = maxBytes;
+    }
+
+    /** Looks up a value and marks it as most recently used
+     * @param hash The hash of the block
+     * @return Returns the cached value (or null if it isn't cached)
+     */
+    public synchronized V get(String hash) {
+        cached<V> c = entries.get(hash);
+        if(c == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return c.value;
+    }
+
+    /** Adds (or replaces) a value, evicting the least recently used values until the cache fits into its size again
+     * @param hash The hash of the block
+     * @param value The decoded value
+     * @param size The footprint of the value in bytes (see footprint())
+     */
+    public synchronized void put(String hash, V value, long size) {
+        if(size > maxBytes) {
+            return;
+        }
+
+        cached<V> old = entries.put(hash, new cached<>(value, size));
+        if(old != null) {
+            bytes -= old.size;
+        }
+        bytes += size;
+
+        Iterator<cached<V>> it = entries.values().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            bytes -= it.next().size;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /** Estimates the heap a decoded block takes: the block with its strings and tree set, and per transaction the
+     *  transaction, its tree set entry, its date and cohort strings and its cached digest
+     * @param b The block
+     * @return Returns the estimate in bytes
+     */
+    public static long footprint(Block b) {
+        long size = BLOCK + footprint(b.getDate()) + footprint(b.getPreviousHash()) + footprint(b.getMerkleRoot());
+        if(b.getTransactions() != null) {
+            for(Transaction tx : b.getTransactions()) {
+                size += TRANSACTION + DIGEST + footprint(tx.getDate()) + footprint(tx.getCohort());
+            }
+        }
+        return size;
+    }
+
+    /** Estimates the heap a decoded block header takes
+     * @param h The header
+     * @return Returns the estimate in bytes
+     */
+    public static long footprint(indexBlock h) {
+        return HEADER + footprint(h.getDate()) + footprint(h.getPrevHash()) + footprint(h.getMerkleRoot());
+    }
+
+    private static long footprint(String s) {
+        return (s == null) ? 0 : STRING + 2L * s.length();
+    }
+
+    /** Empties the cache (the counters are kept) */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return String.format("%s cache: %d entries, %d/%d bytes, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                name, entries.size(), bytes, maxBytes, hits, misses, lookups == 0 ? 0.0 : hits * 100.0 / lookups, evictions);
+    }
+}
+
+/** A cached value and its footprint */
+class cached<V> {
+    final V value;
+    final long size;
+
+    cached(V value, long size) {
+        this.value = value;
+        this.size = size;
+    }
+}
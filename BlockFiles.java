@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Append-only block files (blk00000.dat, blk00001.dat, ..), every block body is written once at the end of a file
+ *  and found again through the (fileNumber, offset, length) stored in its indexBlock.
+ *  Each record is:  length (4) | encoded block (length)
+ *  so a file can also be scanned front to back. Reads are slices of a read-only memory mapping of the file,
+ *  which is only remapped once the file has grown past the mapped part */
+public class BlockFiles {
+
+    private static final Map<Integer, segment> segments = new HashMap<>();
+
+    /** Returns the name of a block file
+     * @param fileNumber The number of the file
+     * @return Returns the file name, eg. 'blk00000.dat'
+     */
+    public static String fileName(int fileNumber) {
+        return String.format("blk%05d.dat", fileNumber);
+    }
+
+    /** Appends an encoded block to the end of a block file
+     * @param fileNumber The number of the file we want to append to
+     * @param body The encoded block
+     * @return Returns the offset of the block inside the file
+     */
+    public static synchronized long append(int fileNumber, byte[] body) throws IOException {
+        segment s = segment(fileNumber);
+        long offset = s.channel.size();
+
+        ByteBuffer record = ByteBuffer.allocate(4 + body.length);
+        record.putInt(body.length);
+        record.put(body);
+        record.flip();
+        while(record.hasRemaining()) {
+            s.channel.write(record, offset + record.position());
+        }
+        return offset + 4;
+    }
+
+    /** Makes sure everything appended to a block file has reached the disk
+     * @param fileNumber The number of the file
+     */
+    public static synchronized void force(int fileNumber) throws IOException {
+        segment(fileNumber).channel.force(false);
+    }
+
+    /** Returns the size of a block file
+     * @param fileNumber The number of the file
+     * @return Returns the number of bytes in the file (0 if it doesn't exist yet)
+     */
+    public static synchronized long size(int fileNumber) throws IOException {
+        if(!segments.containsKey(fileNumber) && !new File(fileName(fileNumber)).exists()) {
+            return 0;
+        }
+        return segment(fileNumber).channel.size();
+    }
+
+    /** Reads a block body without copying it
+     * @param fileNumber The number of the file the block is in
+     * @param offset The offset of the block inside the file
+     * @param length The length of the encoded block
+     * @return Returns a read-only buffer holding just the encoded block
+     */
+    public static ByteBuffer read(int fileNumber, long offset, int length) throws IOException {
+        MappedByteBuffer map;
+        synchronized(BlockFiles.class) {
+            // don't create a file that was pruned (or never written) just to read from it
+            if(!segments.containsKey(fileNumber) && !new File(fileName(fileNumber)).exists()) {
+                throw new FileNotFoundException(fileName(fileNumber));
+            }
+            segment s = segment(fileNumber);
+            if(s.map == null || s.map.capacity() < offset + length) {
+                // the file has grown past what is mapped, so map all of it again
+                s.map = s.channel.map(FileChannel.MapMode.READ_ONLY, 0, s.channel.size());
+            }
+            map = s.map;
+        }
+
+        if(offset + length > map.capacity()) {
+            throw new IOException("block outside of " + fileName(fileNumber) + ": " + offset + "+" + length);
+        }
+        ByteBuffer slice = map.duplicate();
+        slice.position((int) offset);
+        slice.limit((int) offset + length);
+        return slice.slice();
+    }
+
+    /** Closes and deletes a block file (see Blockchain.prune())
+     * @param fileNumber The number of the file
+     */
+    public static synchronized void delete(int fileNumber) throws IOException {
+        segment s = segments.remove(fileNumber);
+        if(s != null) {
+            s.channel.close();
+        }
+        Files.deleteIfExists(new File(fileName(fileNumber)).toPath());
+    }
+
+    /** Closes all open block files (called on shutdown, any later access reopens them) */
+    public static synchronized void closeAll() {
+        for(segment s : segments.values()) {
+            try {
+                s.channel.close();
+            } catch(IOException ioe) {
+                System.out.println("CLOSE BLOCK FILE IOE ERROR: " + ioe);
+            }
+        }
+        segments.clear();
+    }
+
+    private static segment segment(int fileNumber) throws IOException {
+        segment s = segments.get(fileNumber);
+        if(s == null) {
+            s = new segment(FileChannel.open(new File(fileName(fileNumber)).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            segments.put(fileNumber, s);
+        }
+        return s;
+    }
+}
+
+/** An open block file and its current read-only mapping */
+class segment {
+    final FileChannel channel;
+    MappedByteBuffer map = null;
+
+    segment(FileChannel channel) {
+        this.channel = channel;
+    }
+}
@@ -1,10 +1,10 @@
 import java.io.*;
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.*;
 
 public class BlockLSH {
 
@@ -15,50 +15,35 @@ public class BlockLSH {
     
     public static String myCohortHash = null;
     public static String myCohortID = null;
+    public static volatile TreeMap<String, Integer> partition = new TreeMap<>();    // k-anonymous prefixes of the current chaintip -> no. of cohorts
     
     // #######################################################################
     // ## Subsection of cohort hash to send to others (original is 50 bits) ##
     // #######################################################################
     public static int hashSize = 50;
 
+    // Work-stealing pool used to mine batches of transactions (threads are daemons, no shutdown needed)
+    private static final ExecutorService txPool = Executors.newWorkStealingPool();
+
 
     /** Calculates a cohort hash based on data provided (e.g. browsing history)
      * @param filename name of the .json file with data
-     * @return String value of the hash
+     * @return String value of the hash (or null if the file can't be used)
      */
     public static String getCohortHash(String filename) {
-        String cmd = "go run main.go " + filename;
-        String cohort = "";
-
         try {
-            Process p = Runtime.getRuntime().exec(cmd);
-            p.waitFor();
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            cohort = reader.readLine();
-
-        } catch (Exception E) {}
-
-        return getCohortBits(cohort);
+            return getCohortBits(Long.toString(SimHash.hashFile(filename, SimHash.FLOC_BITS)));
+        } catch (Exception e) {
+            System.out.println("COHORT HASH ERROR: " + e);
+            return null;
+        }
     }
 
     /** Calculates a cohort hash based on data provided (e.g. browsing history)
-     * @return String value of the hash
+     * @return String value of the hash (or null if 'host_list.json' can't be used)
      */
     public static String getCohortHash() {
-        String cmd = "go run main.go host_list.json";
-        String cohort = "";
-
-        try {
-            Process p = Runtime.getRuntime().exec(cmd);
-            p.waitFor();
-
-            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
-            cohort = reader.readLine();
-
-        } catch (Exception E) {}
-
-        return getCohortBits(cohort);
+        return getCohortHash("host_list.json");
     }
 
     /** Pads a cohort hash to exactly 50 bits
@@ -74,21 +59,7 @@ public class BlockLSH {
      * @return Returns the hash of the transaction object as a String
      */
     public static String hash(Transaction tx) {
-        String hashtext;
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] bytes = md.digest(tx.toString().getBytes());
-            BigInteger numb = new BigInteger(1, bytes);
-            hashtext = numb.toString(16);
-            while (hashtext.length() < 64) {
-                hashtext = "0" + hashtext;
-            }
-            return hashtext;
-        }
-        catch(NoSuchAlgorithmException nsae) {
-            System.out.println("HASHING ERROR: " + nsae);
-            return null;
-        }
+        return Hashing.hash(tx);
     }
 
     /** Mines the transaction object until the difficulty level is satisfied
@@ -100,15 +71,49 @@ public class BlockLSH {
         System.out.println("target: " + target);
         System.out.println("starting to mine..");
 
-        // Increase nonce value until the proof-of-work challenge is solved..
-        while (!hash(tx).substring(0, Miner.txDif).equals(target)) {
-            tx.nonce++;
-        }
+        solveTransaction(tx);
+
         System.out.println("mined tx: " + hash(tx));
         System.out.println("finished mining tx..");
         return true;
     }
 
+    /** Increases the nonce of the transaction until the difficulty level is satisfied (no console output)
+     * @param tx The unmined transaction object
+     */
+    private static void solveTransaction(Transaction tx) {
+        // Everything before the nonce is hashed once, each attempt only hashes the nonce digits
+        Hashing.hashContext ctx = Hashing.context();
+        ctx.loadTransaction(tx);
+
+        // Increase nonce value until the proof-of-work challenge is solved..
+        long nonce = tx.getNonce();
+        while (Hashing.leadingZeroNibbles(ctx.digestTransaction(nonce)) < Miner.txDif) {
+            nonce++;
+        }
+        tx.setNonce(nonce);
+    }
+
+    /** Mines a batch of transaction objects in parallel on the work-stealing pool
+     * @param txs The unmined transaction objects
+     * @return Returns a CompletionService which hands back each transaction as soon as it has been mined (call take() txs.size() times)
+     */
+    public static CompletionService<Transaction> mineTransactions(Collection<Transaction> txs) {
+        CompletionService<Transaction> mined = new ExecutorCompletionService<>(txPool);
+
+        for (final Transaction tx : txs) {
+            mined.submit(new Callable<Transaction>() {
+                @Override
+                public Transaction call() {
+                    solveTransaction(tx);
+                    return tx;
+                }
+            });
+        }
+
+        return mined;
+    }
+
     /** Calculates the cohort ID to be used when browsing, based on PrefixLSH
      * ( https://www.chromium.org/Home/chromium-privacy/privacy-sandbox/floc/ )
      * @param txs List of all transactions in a block
@@ -116,50 +121,33 @@ public class BlockLSH {
      * @return users cohort ID or 'null'
      */
     public static String getCohortID(TreeSet<Transaction> txs, String myCohort) {
-        int prefixSize = 0;
-        String prefix = myCohort.substring(0, prefixSize);
-        String cohort;
-
         if(txs.isEmpty()) {
             System.out.println("txs empty");
-            cohort = "null";
         }
 
-        else {
-            Iterator<Transaction> it = txs.iterator();
-            TreeSet<String> cohorts = new TreeSet<>();
-
-            int saiz = 0;
-
-            while (it.hasNext()) {
-                String tx = it.next().getCohort();
-                if (tx.startsWith(prefix)) {
-                    cohorts.add(tx);
-                }
-            }
-
-            for (; (cohorts.size() >= kSize) || (prefixSize==50); prefixSize += 1) {
-                Iterator<String> it2 = cohorts.iterator();
-                TreeSet<String> cohorts2 = new TreeSet<>();
-                prefix = myCohort.substring(0, prefixSize);
-
-                while (it2.hasNext()) {
-                    String tx = it2.next();
-                    if (tx.startsWith(prefix)) {
-                        cohorts2.add(tx);
-                    }
-                }
-                saiz = cohorts.size();
-                cohorts = (TreeSet<String>) cohorts2.clone();
-            }
-
-            cohort = myCohort.substring(0, prefixSize);
+        CohortTrie trie = new CohortTrie();
+        for(Transaction tx : txs) {
+            trie.add(tx.getCohort());
         }
+        return saveCohortID((myCohort == null) ? -1 : trie.longestPrefix(myCohort, kSize), myCohort);
+    }
 
-        if(prefixSize-1 <= 0) {
-            cohort = "null";
-        }
+    /** Calculates the cohort ID to be used when browsing, based on PrefixLSH, from the cohorts kept by the chain
+     * @param window The unexpired cohorts of the chain (see Blockchain.getCohortWindow())
+     * @param myCohort Users own cohort hash vaue
+     * @return users cohort ID or 'null'
+     */
+    public static String getCohortID(CohortWindow window, String myCohort) {
+        return saveCohortID((myCohort == null) ? -1 : window.longestPrefix(myCohort, kSize), myCohort);
+    }
 
+    /** Turns the longest prefix of our cohort hash shared by kSize cohorts into the cohort ID and saves it
+     * @param prefixSize The length of the prefix (0 or less if not even the whole population has kSize cohorts)
+     * @param myCohort Users own cohort hash vaue
+     * @return users cohort ID or 'null'
+     */
+    private static String saveCohortID(int prefixSize, String myCohort) {
+        String cohort = (prefixSize <= 0) ? "null" : myCohort.substring(0, prefixSize);
 
         if(new File("myCohortID").exists()) {
             new File("myCohortID").delete();
@@ -179,12 +167,49 @@ public class BlockLSH {
         return cohort;
     }
 
+    /** Partitions all cohorts of the chain into k-anonymous prefixes in one pass (see CohortTrie.partition()) and saves
+     *  the table to the 'cohortPartition' file, one 'prefix count' line per prefix
+     * @param window The unexpired cohorts of the chain (see Blockchain.getCohortWindow())
+     * @return Returns the final prefixes and the number of cohorts in each
+     */
+    public static TreeMap<String, Integer> getPartition(CohortWindow window) {
+        TreeMap<String, Integer> table = window.partition(kSize);
+
+        try {
+            FileOutputStream fos = new FileOutputStream("cohortPartition");
+            fos.write(partitionToString(table).getBytes(StandardCharsets.UTF_8));
+
+            fos.close();
+            partition = table;
+        } catch (Exception e) {
+            System.out.println("Saving partition to file error; " + e);
+        }
+
+        return table;
+    }
+
+    /** Turns a partition table into 'prefix count' lines (the empty prefix is written as '-')
+     * @param table The final prefixes and the number of cohorts in each
+     * @return Returns the table as text
+     */
+    public static String partitionToString(Map<String, Integer> table) {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Integer> e : table.entrySet()) {
+            sb.append(e.getKey().isEmpty() ? "-" : e.getKey()).append(' ').append(e.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
     /** Creates a Transaction object and broadcasts it to other peers in the network
      * @param n The Network object that the user is connected on
      */
     public static void sendTransaction(Network n) {
         // Create object and transmit it
         String fullHash = BlockLSH.getCohortHash();
+        if(fullHash == null) {
+            System.out.println("no cohort hash, tx not sent");
+            return;
+        }
         String minHash = fullHash.substring(0, hashSize);
         Transaction tx = new Transaction(minHash);
 
@@ -236,17 +261,47 @@ public class BlockLSH {
 
         System.out.println("done: " + tx.toString());
 
+        try (FileOutputStream fos = new FileOutputStream(n.getTxFile(), true)) {
+            publishTransaction(n, tx, fos);
+        } catch (Exception e) {
+            System.out.println("TX SAVE ERROR: " + e);
+        }
+    }
+
+    /** (**FOR TESTING PURPOSES**) Mines a batch of Transaction objects in parallel and broadcasts each one as soon as it is mined
+     * @param n The Network object that the user is connected on
+     * @param txs The unmined transaction objects
+     */
+    public static void sendTransactions(Network n, Collection<Transaction> txs) {
+        System.out.println("mining " + txs.size() + " txs..");
+        CompletionService<Transaction> mined = mineTransactions(txs);
+
+        try (FileOutputStream fos = new FileOutputStream(n.getTxFile(), true)) {
+            for (int x = 0; x < txs.size(); x++) {
+                publishTransaction(n, mined.take().get(), fos);
+            }
+        } catch (Exception e) {
+            System.out.println("TX BATCH ERROR: " + e);
+        }
+
+        System.out.println("finished mining and sending " + txs.size() + " txs..");
+    }
+
+    /** Sends a mined transaction to the network and appends it to our own unconfirmed txs file
+     * @param n The Network object that the user is connected on
+     * @param tx The mined transaction object
+     * @param fos The unconfirmed txs file, opened in append mode
+     */
+    private static void publishTransaction(Network n, Transaction tx, FileOutputStream fos) throws IOException {
         // send off tx to network
         n.announce(tx);
         System.out.println("cohort id sent!");
 
-        // Save object to our own unconfirmed txs file
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(n.getTxFile(), true))) {
-            oos.writeObject(tx);
-            System.out.println("TX SAVED: " + tx.toString());
-        } catch (Exception e) {
-            System.out.println("TX SAVE ERROR: " + e);
-        }
+        // every object gets its own stream header, as Miner.fetchTransactions reads them back one stream at a time
+        ObjectOutputStream oos = new ObjectOutputStream(fos);
+        oos.writeObject(tx);
+        oos.flush();
+        System.out.println("TX SAVED: " + tx.toString());
     }
 
     // reads cohort ID from file
@@ -0,0 +1,176 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Stores blocks on its own thread so the threads that receive them (eg. TomP2P reply handlers) don't wait on the disk.
+ *  Blocks are taken from a bounded queue, and every block that is already waiting when the writer gets to it is
+ *  stored in the same group commit (one WriteBatch per database), so a burst of blocks costs one disk sync, not one each */
+public class BlockWriter {
+
+    // ##########################################################################################
+    // ## Max number of blocks waiting to be stored (submitting more waits until there's room) ##
+    // ##########################################################################################
+    public static int queueSize = 1024;
+
+    // #######################################################
+    // ## Max number of blocks stored in one group commit ##
+    // #######################################################
+    public static int maxGroup = 256;
+
+    private final Blockchain chain;
+    private final BlockingQueue<pendingBlock> queue = new ArrayBlockingQueue<>(queueSize);
+    private final ConcurrentHashMap<String, Block> queued = new ConcurrentHashMap<>();    // hash -> block, until it is stored
+    private final Thread thread;
+    private volatile boolean running = true;
+    private final ReentrantReadWriteLock closing = new ReentrantReadWriteLock();    // submit() holds the read lock, close() the write lock
+
+    public BlockWriter(Blockchain chain) {
+        this.chain = chain;
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "block-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /** Queues a block to be stored
+     * @param hash The hash of the block
+     * @param block The block object we want to store
+     * @return Returns a future that completes once the block is stored (wait on it before reading the block back)
+     */
+    public CompletableFuture<Void> submit(String hash, Block block) {
+        pendingBlock p = new pendingBlock(hash, block);
+
+        // close() can't stop the writer between the check and the put, so a queued block is always written (or failed)
+        closing.readLock().lock();
+        try {
+            if(!running) {
+                p.getDone().completeExceptionally(new IllegalStateException("block writer is closed"));
+                return p.getDone();
+            }
+
+            queued.put(hash, block);
+            try {
+                queue.put(p);
+            } catch(InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                queued.remove(hash, block);
+                p.getDone().completeExceptionally(ie);
+            }
+        } finally {
+            closing.readLock().unlock();
+        }
+        return p.getDone();
+    }
+
+    /** Looks up a block that was submitted but isn't stored yet
+     * @param hash The hash of the block
+     * @return Returns the block (or null if it isn't waiting in the writer)
+     */
+    public Block getQueued(String hash) {
+        return queued.get(hash);
+    }
+
+    /** Stores the blocks still in the queue and stops the writer thread */
+    public void close() {
+        closing.writeLock().lock();
+        try {
+            running = false;
+        } finally {
+            closing.writeLock().unlock();
+        }
+
+        try {
+            thread.join();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Writer loop: wait for a block, add whatever else is queued behind it and store them all in one go */
+    private void write() {
+        List<pendingBlock> group = new ArrayList<>();
+
+        while(running || !queue.isEmpty()) {
+            try {
+                pendingBlock first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(first == null) {
+                    continue;
+                }
+                group.add(first);
+                queue.drainTo(group, maxGroup - 1);
+
+                List<String> hashes = new ArrayList<>(group.size());
+                List<Block> blocks = new ArrayList<>(group.size());
+                for(pendingBlock p : group) {
+                    hashes.add(p.getHash());
+                    blocks.add(p.getBlock());
+                }
+
+                try {
+                    chain.storeBlocks(hashes, blocks);
+                    forget(group);
+                    for(pendingBlock p : group) {
+                        p.getDone().complete(null);
+                    }
+                } catch(Exception e) {
+                    System.out.println("BLOCK WRITER ERROR: " + e);
+                    forget(group);
+                    for(pendingBlock p : group) {
+                        p.getDone().completeExceptionally(e);
+                    }
+                }
+            } catch(InterruptedException ie) {
+                break;
+            } finally {
+                group.clear();
+            }
+        }
+
+        // only left when the thread was interrupted, nobody would complete these otherwise
+        queue.drainTo(group);
+        forget(group);
+        for(pendingBlock p : group) {
+            p.getDone().completeExceptionally(new IllegalStateException("block writer stopped before storing the block"));
+        }
+    }
+
+    /** Drops the blocks of a group from the queued ones once they are stored (or failed to be) */
+    private void forget(List<pendingBlock> group) {
+        for(pendingBlock p : group) {
+            queued.remove(p.getHash(), p.getBlock());
+        }
+    }
+}
+
+/** A block waiting to be stored and the future of its caller */
+class pendingBlock {
+    private final String hash;
+    private final Block block;
+    private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+    public pendingBlock(String hash, Block block) {
+        this.hash = hash;
+        this.block = block;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    public CompletableFuture<Void> getDone() {
+        return done;
+    }
+}
@@ -1,18 +1,16 @@
 import net.tomp2p.peers.PeerAddress;
-import org.apache.commons.lang3.SerializationUtils;
 import org.iq80.leveldb.*;
-import static org.iq80.leveldb.impl.Iq80DBFactory.*;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Blockchain {
-    private DB blockDB;
-    private DB indexDB;
-    private Options options = new Options();
-    private int fileNum = 0;
+    private volatile int fileNum = 0;               // block file new blocks are appended to
 
     private long currentIndex = 0;                  // current chain index
     private String currentHash = "GENESIS";         // current chain top block hash
@@ -20,8 +18,16 @@ public class Blockchain {
 
     private indexBlock chainTip = null;      // header of current chain tip
 
-    private LinkedList<unofficial> unofficial = new LinkedList<unofficial>();
+    private final LinkedList<unofficial> unofficial = new LinkedList<unofficial>();    // guarded by itself, see checkUnofficial()
     private ArrayList<String> request = new ArrayList<String>();
+    private final List<Runnable> tipListeners = new CopyOnWriteArrayList<>();   // notified whenever the chaintip moves
+    private final BlockWriter writer = new BlockWriter(this);                   // stores submitted blocks in group commits
+    private final BlockCache<indexBlock> headerCache = new BlockCache<>("header", headerCacheSize);
+    private final BlockCache<Block> blockCache = new BlockCache<>("block", blockCacheSize);
+    private volatile BloomFilter known;                                          // hashes of every block we have a header of
+    private final Set<Integer> prunedFiles = new ConcurrentSkipListSet<>();     // block files deleted by prune()
+    private final CohortWindow window = new CohortWindow();                     // unexpired cohorts of the main chain
+    private volatile long windowExpiredTime = -1;                               // expiredTime the window was loaded with (-1 = not loaded)
     private String myPubKey = Base64.getEncoder().encodeToString( Main.encryption.getRSAPublic().getEncoded() );
 
     // #################################################################################################################
@@ -35,24 +41,83 @@ public class Blockchain {
     // ####################################################################################################
     public static long blockInterval = 3600; // 1 hour
 
+    // ##################################################################################################
+    // ## Wait for block writes to reach the disk before continuing (safer on power loss, but slower) ##
+    // ## (when false, writes are handed to the OS and a crash of only this process loses nothing)   ##
+    // ##################################################################################################
+    public static boolean syncWrites = false;
+
+    // ###########################################################################################
+    // ## Max size (in bytes) and max number of blocks of a block file before a new one is used ##
+    // ###########################################################################################
+    public static long maxFileSize = 128L * 1024 * 1024;   // 128 MiB
+    public static int maxFileBlocks = 1000;
+
+    // ###################################################################################################
+    // ## Max heap (in bytes, estimated from the decoded objects) of the recently used headers and blocks ##
+    // ###################################################################################################
+    public static long headerCacheSize = 16L * 1024 * 1024;   // 16 MiB, ~33000 headers
+    public static long blockCacheSize = 64L * 1024 * 1024;    // 64 MiB, ~200000 txs
+
+    // #####################################################################################################
+    // ## Number of blocks the Bloom filter of known blocks is sized for at startup (it is rebuilt larger ##
+    // ## once the chain outgrows it), and its false positive probability at that size                    ##
+    // #####################################################################################################
+    public static long bloomCapacity = 100000;
+    public static double bloomFpp = 0.01;
+
+    // ###########################################################################################################
+    // ## Pruned mode: delete block bodies once all their cohorts have expired and they are at least pruneDepth ##
+    // ## blocks below the chaintip (every header is kept, peers asking for a pruned body get 'pruned-<hash>')  ##
+    // ###########################################################################################################
+    public static boolean pruneMode = false;
+    public static long pruneDepth = 100;
+
 
     /** index db store:     f+filename  : indexFile     eg. fblocks0 : file.header
      *                      b+blockhash : indexBlock    eg. b00f3c.. : block.header
+     *                      lastfile    : number of the block file new blocks are appended to
+     *                      pruned+n    : (empty)       eg. pruned0 : blk00000.dat was deleted by prune(), its headers are kept
+     *                      h+index     : blockhash     eg. h0000000000000000042 : 00f3c.. (main chain only, zero padded so
+     *                                                  the keys are sorted by height and can be range scanned)
      *
-     *  block db store:     blockhash   : block
-     *                      */
+     *  the block bodies are in the block files, see BlockFiles */
 
     /** Queries the current chaintip and saves it as a variable */
     public Blockchain() {
         if(chainTip == null) {
             byte[] ct = read(getIndexDB(), "chaintip".getBytes());
             if(ct != null) {
-                chainTip = (indexBlock) SerializationUtils.deserialize(ct);
-                currentHash = new Miner().hash(chainTip);
-                currentIndex = chainTip.getIndex();
-                currentDifficultyTotal = chainTip.getTotalDifficulty();
+                indexBlock tip = (indexBlock) BinaryCodec.decode(ct);
+                String tipHash = new Miner().hash(tip);
+                if(read(getIndexDB(), ("b" + tipHash).getBytes()) == null) {
+                    // stored by a version that hashed blocks over their toString(), the keys, the previousHash links and
+                    // the proof of work of every block are over those hashes, so the chain can't be carried over
+                    System.out.println("the stored chain was written by an older version and can't be used, delete the "
+                            + "'blocks0' and 'index' databases and the block files and sync the chain again");
+                }
+                else {
+                    chainTip = tip;
+                    currentHash = tipHash;
+                    currentIndex = chainTip.getIndex();
+                    currentDifficultyTotal = chainTip.getTotalDifficulty();
+                }
             }
         }
+        byte[] lf = read(getIndexDB(), "lastfile".getBytes());
+        if(lf != null) {
+            fileNum = Integer.parseInt(new String(lf, StandardCharsets.UTF_8));
+        }
+        for(int n = 0; n <= fileNum; n++) {
+            if(read(getIndexDB(), ("pruned" + n).getBytes()) != null) {
+                prunedFiles.add(n);
+            }
+        }
+        rebuildFilter();
+        // chains stored by older versions have no height index yet
+        if(chainTip != null && !currentHash.equals(getHashAt(currentIndex))) {
+            indexHeights();
+        }
         System.out.println("current chaintip: " + currentHash);
     }
 
@@ -95,201 +160,453 @@ public class Blockchain {
         }
     }
 
-    /** Closes the specified database (necessary for multithreading)
+    /** Called once an operation is done with a database. The handle is shared and stays open (see Storage), so there is
+     *  nothing to release, every getIndexDB() is still paired with a finish() (StorageBenchmark closes the database here)
      * @param database The database we want to use
      */
     public void finish(DB database) {
-        try {
-            database.close();
-        } catch(IOException ioe) {
-            System.out.println("FINISH IOE ERROR: " + ioe);
-        }
     }
 
-    /**
-     * @return Returns all valid cohorts
+    /** Returns the transactions of the main chain that haven't expired yet, from the cohort window that is kept up to
+     *  date as blocks connect (see storeBlocks()), so only the first call after startup goes through the chain
+     * @return Returns all valid cohorts (shared, must not be modified)
      */
     public TreeSet<Transaction> getCohorts() {
-        System.out.println("getting all cohorts..");
+        refreshWindow();
+        TreeSet<Transaction> validCohorts = window.getTransactions();
+        System.out.println("NO. OF VALID COHORTS; " + validCohorts.size());
 
-        TreeSet<Transaction> validCohorts = new TreeSet<>();
+        return validCohorts;
+    }
 
-        String ch = currentHash;
-        boolean late = false;
+    /** Loads the cohort window if it isn't loaded yet (or expiredTime was changed) and expires the txs that are due */
+    private void refreshWindow() {
+        long now = Hashing.dateToMillis(Transaction.makeDate());
+        if(windowExpiredTime != expiredTime) {
+            loadCohorts(now);
+        }
+        window.expire(now);
+    }
 
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        Date currentDate = null;
+    /** Fills the cohort window from the chain (at startup, or after expiredTime was changed).
+     *  The block files whose latest block has already expired are left out using only their file headers (see getLiveFiles()),
+     *  the lowest height left in the others is where the scan of the height index starts, and a block body is only read
+     *  if its own date hasn't expired either
+     * @param now The current time in milliseconds (see Hashing.dateToMillis())
+     */
+    private synchronized void loadCohorts(long now) {
+        if(windowExpiredTime == expiredTime) {
+            return;
+        }
+        System.out.println("loading cohorts from the chain..");
+        long validTime = expiredTime;
+        window.clear();
+
+        // lowest height any unexpired block file starts at
+        boolean[] live = getLiveFiles(now);
+        long from = Long.MAX_VALUE;
+        for(int n = 0; n < live.length; n++) {
+            indexFile file = live[n] ? getFileHeader(n) : null;
+            if(file != null) {
+                from = Math.min(from, file.getLowIndex());
+            }
+        }
 
-        try {
-            currentDate = sdf.parse(Transaction.makeDate());
-        } catch (ParseException e) {
-            e.printStackTrace();
+        int skipped = 0;
+        for(String ch : getHashes(Math.max(from, 1), currentIndex)) {
+            // read current block header
+            indexBlock header = getHeader(ch);
+            if(header == null) {
+                break;
+            }
+            int f = header.getFileNumber();
+
+            if( (f >= live.length || live[f]) && now - Hashing.dateToMillis(header.getDate()) < validTime * 1000) {
+                Block b = readBlock(ch, header);
+                if(b != null) {
+                    window.connect(ch, b, now, validTime);
+                    continue;
+                }
+            }
+            skipped++;
         }
 
-        while(!ch.equals("GENESIS") || !late) {
-            // read current block
-            byte[] contents = read(getBlockDB(), ch.getBytes());
+        windowExpiredTime = validTime;
+        System.out.println("cohort window loaded (" + skipped + " expired blocks skipped)");
+    }
 
-            if(contents == null) {
-                //System.out.println("no tx exist in block");
+    /** Points the height index at the main chain ending in a new tip, going back until it reaches a height that already
+     *  points at the right block (for a new block on top of the tip that is just one entry, after a reorg it is every
+     *  height down to where the chains forked)
+     * @param indexDB The index database
+     * @param batch The batch the changes are added to
+     * @param hash The hash of the new tip
+     * @param header The header of the new tip
+     * @param pending The headers that are in the batch but not yet in the indexDB
+     * @param joined Gets the hashes of the blocks that join the main chain
+     * @param left Gets the hashes of the blocks that leave the main chain
+     */
+    private void indexHeights(DB indexDB, WriteBatch batch, String hash, indexBlock header, Map<String, indexBlock> pending, List<String> joined, List<String> left) {
+        while(header != null) {
+            byte[] key = heightKey(header.getIndex());
+            byte[] old = indexDB.get(key);
+            if(old != null && hash.equals(new String(old, StandardCharsets.UTF_8))) {
                 break;
             }
+            if(old != null) {
+                left.add(new String(old, StandardCharsets.UTF_8));
+            }
+            batch.put(key, hash.getBytes(StandardCharsets.UTF_8));
+            joined.add(hash);
 
+            hash = header.getPrevHash();
+            if(hash.equals("GENESIS")) {
+                break;
+            }
+            if(pending.containsKey(hash)) {
+                header = pending.get(hash);
+            }
             else {
-                Block b = (Block) SerializationUtils.deserialize(contents);
-                System.out.println("got block with hash: " + ch);
-                try {
-                    // TODO; doublecheck again?
-                    if ( ( (currentDate.getTime() - sdf.parse(b.getDate()).getTime() ) / 1000 ) < expiredTime) {
-                        // loop over its contents and add valid cohorts
-                        for (Transaction tx : b.getTransactions()) {
-                            Date msgDate = sdf.parse(tx.getDate());
-                            long diffTime = (currentDate.getTime() - msgDate.getTime()) / 1000;
-
-                            if (diffTime < expiredTime) {
-                                validCohorts.add(tx);
-                            } else {
-                                late = true;
-                            }
-                        }
-                    }
-                    else {
-                        late = true;
-                    }
-                } catch (Exception e) {
-                System.out.println("cohort get date err: " + e);
+                byte[] res = indexDB.get(("b" + hash).getBytes());
+                header = (res == null) ? null : (indexBlock) BinaryCodec.decode(res);
             }
+        }
+    }
+
+    /** Builds the height index of the current chain (for chains stored before there was one) */
+    private synchronized void indexHeights() {
+        System.out.println("building height index..");
+        DB indexDB = getIndexDB();
+        try (WriteBatch batch = indexDB.createWriteBatch()) {
+            indexHeights(indexDB, batch, currentHash, chainTip, Collections.<String, indexBlock>emptyMap(), new ArrayList<String>(), new ArrayList<String>());
+            indexDB.write(batch);
+        } catch(IOException ioe) {
+            System.out.println("HEIGHT INDEX IOE ERROR: " + ioe);
+        } finally {
+            finish(indexDB);
+        }
+    }
 
+    /** Returns the key of a height in the height index
+     * @param index The height of the block
+     * @return Returns the key, eg. 'h0000000000000000042'
+     */
+    private static byte[] heightKey(long index) {
+        return String.format("h%019d", index).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Looks up the main chain block at a height
+     * @param index The height of the block
+     * @return Returns the hash of the block (or null if the main chain isn't that long)
+     */
+    public String getHashAt(long index) {
+        byte[] res = read(getIndexDB(), heightKey(index));
+        return (res == null) ? null : new String(res, StandardCharsets.UTF_8);
+    }
+
+    /** Scans the height index for a range of the main chain
+     * @param from The lowest height we want
+     * @param to The highest height we want
+     * @return Returns the hashes of the main chain blocks from height 'from' up to 'to', lowest first
+     */
+    public List<String> getHashes(long from, long to) {
+        List<String> hashes = new ArrayList<>();
+        if(from > to) {
+            return hashes;
+        }
 
-                // get child block and increase count
-                ch = b.getPreviousHash();
+        DB indexDB = getIndexDB();
+        try (DBIterator it = indexDB.iterator()) {
+            String last = new String(heightKey(to), StandardCharsets.UTF_8);
+            for(it.seek(heightKey(from)); it.hasNext(); ) {
+                Map.Entry<byte[], byte[]> entry = it.next();
+                String key = new String(entry.getKey(), StandardCharsets.UTF_8);
+                if(!key.startsWith("h") || key.compareTo(last) > 0) {
+                    break;
+                }
+                hashes.add(new String(entry.getValue(), StandardCharsets.UTF_8));
             }
+        } catch(IOException ioe) {
+            System.out.println("HEIGHT SCAN IOE ERROR: " + ioe);
+        } finally {
+            finish(indexDB);
         }
+        return hashes;
+    }
 
-        System.out.println("NO. OF VALID COHORTS; " + validCohorts.size());
+    /** Reads the headers of a range of the main chain
+     * @param from The lowest height we want
+     * @param to The highest height we want
+     * @return Returns the headers of the main chain blocks from height 'from' up to 'to', lowest first
+     */
+    public LinkedList<indexBlock> getHeaders(long from, long to) {
+        LinkedList<indexBlock> headerList = new LinkedList<>();
+        for(String hash : getHashes(from, to)) {
+            indexBlock header = getHeader(hash);
+            if(header == null) {
+                break;
+            }
+            headerList.addLast(header);
+        }
+        return headerList;
+    }
 
-        return validCohorts;
+    /** Reads the file header of a block file
+     * @param n The number of the block file
+     * @return Returns the file header (or null if no block was stored in that file)
+     */
+    public indexFile getFileHeader(int n) {
+        byte[] res = read(getIndexDB(), ("fblocks" + n).getBytes());
+        return (res == null) ? null : (indexFile) BinaryCodec.decode(res);
+    }
+
+    /** Works out which block files can still hold unexpired blocks, using only their file headers
+     * @param now The current time in milliseconds, as Hashing.dateToMillis() reads dates (eg. of Transaction.makeDate())
+     * @return Returns an array with an entry per block file, true if the latest block in it hasn't expired yet
+     */
+    public boolean[] getLiveFiles(long now) {
+        boolean[] live = new boolean[fileNum + 1];
+
+        for(int n = 0; n < live.length; n++) {
+            indexFile file = getFileHeader(n);
+            live[n] = file != null && now - Hashing.dateToMillis(file.getLateDate()) < expiredTime * 1000;
+        }
+        return live;
     }
 
-    /** Saves block inside block DB
+    /** Saves block inside block DB (on the calling thread, see submitBlock() to store it on the block writer thread)
      * @param hash The hash of the block we want to store
      * @param block The block object we want to store
      */
     public void storeBlock(String hash, Block block) {
-        // TODO; atomicity -> either all changes made or none..
         System.out.println("storing block: " + hash);
         try {
+            storeBlocks(Collections.singletonList(hash), Collections.singletonList(block));
+            System.out.println("finished storing block..");
+        } catch(Exception e) {
+            System.out.println("STORE BLOCK ERR: " + e);
+        }
+    }
 
-            // Adds block to blockDB if it's not already there
-            if( read(getBlockDB(), hash.getBytes()) == null) {
-                System.out.println("we don't already have this block..");
-                byte[] bytesBlock = SerializationUtils.serialize(block);
-                add(getBlockDB(), hash.getBytes(), bytesBlock);
-                System.out.println("added to blockDB");
-            }
-            else{
-                System.out.println("we already have this block stored..");
-            }
+    /** Queues a block to be stored by the block writer, blocks that arrive close together are stored in one group commit
+     * @param hash The hash of the block we want to store
+     * @param block The block object we want to store
+     * @return Returns a future that completes once the block is stored (wait on it before reading the block back)
+     */
+    public CompletableFuture<Void> submitBlock(String hash, Block block) {
+        return writer.submit(hash, block);
+    }
 
-            // Adds block metadata to indexDB if it's not already there
-            if(read(getIndexDB(), ("b"+hash).getBytes()) == null) {
-                // Adds header to indexDB
-                indexBlock blockHeader = new indexBlock(block.getIndex(), block.getDifficultyLevel(), block.getTotalDifficulty(), getFileNum(), block.getDate(), block.getPreviousHash(), block.getMerkleRoot(), block.getNonce());
-                System.out.println("header: " + blockHeader.toString());
-                byte[] bytesHeader = SerializationUtils.serialize(blockHeader);
-                add(getIndexDB(), ("b" + hash).getBytes(), bytesHeader);
-                System.out.println("header added to indexDB");
+    /** Stores the blocks still waiting in the block writer queue and stops the writer */
+    public void closeWriter() {
+        writer.close();
+    }
+
+    /** Saves a group of blocks with one write per store
+     *  The block bodies are appended to the block file first, then every index change that connects the blocks (their
+     *  headers with the location of their body, the file header and the chaintip) is written in one WriteBatch, so after
+     *  a crash a block is either fully connected or only its body exists (unreferenced, storing the block again appends it again).
+     *  Once the current block file reaches maxFileSize or maxFileBlocks the following blocks go to the next file
+     * @param hashes The hashes of the blocks we want to store
+     * @param blocks The block objects we want to store (same order as their hashes)
+     */
+    public synchronized void storeBlocks(List<String> hashes, List<Block> blocks) throws Exception {
+        WriteOptions wo = new WriteOptions().sync(syncWrites);
+        DB indexDB = getIndexDB();
+
+        try (WriteBatch index = indexDB.createWriteBatch()) {
+            Set<String> connected = new HashSet<>();
+            int current = fileNum;
+            byte[] res = indexDB.get(("fblocks" + current).getBytes());
+            indexFile file = (res == null) ? null : (indexFile) BinaryCodec.decode(res);
+            Map<Integer, indexFile> files = new TreeMap<>();    // file headers changed by this group
+            Map<String, indexBlock> added = new HashMap<>();    // headers of this group, not in the indexDB until the batch is written
+            Map<String, byte[]> bodies = new HashMap<>();       // their encoded bodies
+            List<String> joined = new ArrayList<>();            // blocks joining / leaving the main chain
+            List<String> left = new ArrayList<>();
+            indexBlock tip = getChainTip();
+            String tipHash = null;
+
+            for(int x = 0; x < blocks.size(); x++) {
+                String hash = hashes.get(x);
+                Block block = blocks.get(x);
+
+                // Nothing to do if the block is already stored (or earlier in this group), the filter rules out most new blocks without a read
+                if((known.mightContain(hash) && indexDB.get(("b"+hash).getBytes()) != null) || !connected.add(hash)) {
+                    System.out.println("block already stored.. " + hash);
+                    continue;
+                }
+
+                // Start a new block file if this block doesn't fit in the current one
+                byte[] body = BinaryCodec.encode(block);
+                if(file != null && (file.getNumBlocks() >= maxFileBlocks || BlockFiles.size(current) + 4 + body.length > maxFileSize)) {
+                    current++;
+                    file = null;
+                    System.out.println("starting block file " + BlockFiles.fileName(current));
+                }
+
+                // Appends the block to the block file, its header records where
+                indexBlock blockHeader = new indexBlock(block.getIndex(), block.getDifficultyLevel(), block.getTotalDifficulty(), current, block.getDate(), block.getPreviousHash(), block.getMerkleRoot(), block.getNonce());
+                blockHeader.setLocation(BlockFiles.append(current, body), body.length);
+                index.put(("b" + hash).getBytes(), BinaryCodec.encode(blockHeader));
+                added.put(hash, blockHeader);
+                bodies.put(hash, body);
+                file = updateFileHeader(file, block);
+                files.put(current, file);
 
                 // Check if this block is a new chain tip/head
                 // TODO; ? check if we already have a block in indexFile with higher difficulty
-                System.out.println("checking chaintip");
-                if(getChainTip() == null) {
-                    System.out.println("chaintip is null, so set it..");
-                    setChainTip(blockHeader);
-                    setCurrentDifficultyTotal(blockHeader.getTotalDifficulty());
-                    setCurrentHash(hash);
-                    setCurrentIndex(blockHeader.getIndex());
-
-                    TreeSet<Transaction> txs = getCohorts();
-                    BlockLSH.getCohortID(txs, BlockLSH.myCohortHash);
-                }
-                else if(getChainTip().getTotalDifficulty() < blockHeader.getTotalDifficulty()) {
-                    System.out.println("updating chaintip...");
-                    setChainTip(blockHeader);
-                    setCurrentDifficultyTotal(blockHeader.getTotalDifficulty());
-                    setCurrentHash(hash);
-                    setCurrentIndex(blockHeader.getIndex());
-                    System.out.println("new chaintip set");
-
-                    TreeSet<Transaction> txs = getCohorts();
-                    BlockLSH.getCohortID(txs, BlockLSH.myCohortHash);
+                if(tip == null || tip.getTotalDifficulty() < blockHeader.getTotalDifficulty()) {
+                    tip = blockHeader;
+                    tipHash = hash;
                 }
-                System.out.println("chaintip checked..");
-                System.out.println("checking fileheader data");
-
-                // Updates fileheader info in indexDB (if relevant)
-                if (read(getIndexDB(), ("fblocks" + fileNum).getBytes()) == null) {
-                    indexFile fileHeader = new indexFile(1, block.getIndex(), block.getIndex(), block.getTotalDifficulty(), block.getTotalDifficulty(), block.getDate(), block.getDate());
-                    byte[] bytesFile = SerializationUtils.serialize(fileHeader);
-                    add(getIndexDB(), ("fblocks" + fileNum).getBytes(), bytesFile);
+            }
+
+            if(connected.isEmpty()) {
+                return;
+            }
+            // bodies before the index, so a header never points past the end of a block file
+            if(syncWrites) {
+                for(int n : files.keySet()) {
+                    BlockFiles.force(n);
                 }
-                else {
-                    byte[] res = read(getIndexDB(), ("fblocks" + fileNum).getBytes());
-                    indexFile oldIndex = (indexFile) SerializationUtils.deserialize(res);
-
-                    long lowIndex = oldIndex.getLowIndex();
-                    long highIndex = oldIndex.getHighIndex();
-                    long lowWork = oldIndex.getLowWork();
-                    long highWork = oldIndex.getHighWork();
-                    String earlyDate = oldIndex.getEarlyDate();
-                    String lateDate = oldIndex.getLateDate();
-
-                    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-                    Date oldEarly = sdf.parse(earlyDate);
-                    Date oldLate = sdf.parse(lateDate);
-
-                    Date newDate = sdf.parse(block.getDate());
-
-                    // check if we need to update index value
-                    if (lowIndex > block.getIndex()) {
-                        lowIndex = block.getIndex();
-                    } else if (highIndex < block.getIndex()) {
-                        highIndex = block.getIndex();
-                    }
+            }
 
-                    // check if we need to update the TotalDifficulty value
-                    if (lowWork > block.getTotalDifficulty()) {
-                        lowWork = block.getTotalDifficulty();
-                    } else if (highWork < block.getTotalDifficulty()) {
-                        highWork = block.getTotalDifficulty();
+            for(Map.Entry<Integer, indexFile> f : files.entrySet()) {
+                index.put(("fblocks" + f.getKey()).getBytes(), BinaryCodec.encode(f.getValue()));
+            }
+            if(current != fileNum) {
+                index.put("lastfile".getBytes(), String.valueOf(current).getBytes(StandardCharsets.UTF_8));
+            }
+            if(tipHash != null) {
+                index.put("chaintip".getBytes(), BinaryCodec.encode(tip));
+                indexHeights(indexDB, index, tipHash, tip, added, joined, left);
+                // a shorter chain with more work took over, so the heights above its tip are no longer in the main chain
+                for(long h = tip.getIndex() + 1; h <= currentIndex; h++) {
+                    byte[] old = indexDB.get(heightKey(h));
+                    if(old != null) {
+                        left.add(new String(old, StandardCharsets.UTF_8));
                     }
+                    index.delete(heightKey(h));
+                }
+            }
+            // one write-log append connects every block of the group
+            indexDB.write(index, wo);
+            System.out.println(connected.size() + " block(s) added to indexDB");
+            fileNum = current;
 
-                    // check if we need to update the date value
-                    if (oldEarly.after(newDate)) {
-                        earlyDate = block.getDate();
-                    } else if (oldLate.before(newDate)) {
-                        lateDate = block.getDate();
-                    }
+            for(String hash : added.keySet()) {
+                known.add(hash);
+            }
+            if(known.isFull()) {
+                rebuildFilter();
+            }
+
+            // the blocks of a new tip are what the next blocks get validated against, so keep them at hand
+            // (decoded again from their bodies, the caller may still change the block objects it passed in)
+            for(Map.Entry<String, indexBlock> h : added.entrySet()) {
+                Block stored = (Block) BinaryCodec.decode(bodies.get(h.getKey()));
+                headerCache.put(h.getKey(), h.getValue(), BlockCache.footprint(h.getValue()));
+                blockCache.put(h.getKey(), stored, BlockCache.footprint(stored));
+            }
 
-                    indexFile newIndex = new indexFile(oldIndex.getNumBlocks() + 1, lowIndex, highIndex, lowWork, highWork, earlyDate, lateDate);
-                    byte[] bytesIndex = SerializationUtils.serialize(newIndex);
-                    add(getIndexDB(), ("fblocks" + fileNum).getBytes(), bytesIndex);
+            // only move the in-memory chaintip once the batch is written
+            if(tipHash != null) {
+                System.out.println("updating chaintip...");
+                setChainTip(tip);
+                setCurrentDifficultyTotal(tip.getTotalDifficulty());
+                setCurrentHash(tipHash);
+                setCurrentIndex(tip.getIndex());
+                System.out.println("new chaintip set");
+                updateCohorts(joined, left, added);
+                notifyTipListeners();
+
+                getCohorts();
+                BlockLSH.getCohortID(window, BlockLSH.myCohortHash);
+                BlockLSH.getPartition(window);
+
+                if(pruneMode) {
+                    prune();
                 }
             }
+        } finally {
+            finish(indexDB);
+        }
+    }
 
-            else {
-                System.out.println("block metadata already stored..");
+    /** Moves the cohort window along with a chaintip change (nothing to do until it has been loaded)
+     * @param joined The hashes of the blocks that joined the main chain
+     * @param left The hashes of the blocks that left the main chain
+     * @param pending The headers of the blocks stored by this group
+     */
+    private void updateCohorts(List<String> joined, List<String> left, Map<String, indexBlock> pending) {
+        if(windowExpiredTime != expiredTime) {
+            return;
+        }
+
+        long now = Hashing.dateToMillis(Transaction.makeDate());
+        List<String> hashes = new ArrayList<>();
+        List<Block> bodies = new ArrayList<>();
+        for(String hash : joined) {
+            indexBlock header = pending.containsKey(hash) ? pending.get(hash) : getHeader(hash);
+            // a block that has expired has nothing left to add, so its body isn't read
+            if(header == null || now - Hashing.dateToMillis(header.getDate()) >= expiredTime * 1000) {
+                continue;
+            }
+            Block b = readBlock(hash, header);
+            if(b != null) {
+                hashes.add(hash);
+                bodies.add(b);
             }
+        }
+        window.update(left, hashes, bodies, now, expiredTime);
+    }
 
-            System.out.println("finished storing block..");
+    /** Works out the file header of the current block file once a block is added to it
+     * @param oldIndex The current file header (or null if the file has no blocks yet)
+     * @param block The block being added
+     * @return Returns the updated file header
+     */
+    private indexFile updateFileHeader(indexFile oldIndex, Block block) throws ParseException {
+        if (oldIndex == null) {
+            return new indexFile(1, block.getIndex(), block.getIndex(), block.getTotalDifficulty(), block.getTotalDifficulty(), block.getDate(), block.getDate());
+        }
 
-        } catch(Exception e) {
-            System.out.println("STORE BLOCK ERR: " + e);
-        } finally {
-            finish(getBlockDB());
-            finish(getIndexDB());
+        long lowIndex = oldIndex.getLowIndex();
+        long highIndex = oldIndex.getHighIndex();
+        long lowWork = oldIndex.getLowWork();
+        long highWork = oldIndex.getHighWork();
+        String earlyDate = oldIndex.getEarlyDate();
+        String lateDate = oldIndex.getLateDate();
+
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        Date oldEarly = sdf.parse(earlyDate);
+        Date oldLate = sdf.parse(lateDate);
+
+        Date newDate = sdf.parse(block.getDate());
+
+        // check if we need to update index value
+        if (lowIndex > block.getIndex()) {
+            lowIndex = block.getIndex();
+        } else if (highIndex < block.getIndex()) {
+            highIndex = block.getIndex();
+        }
+
+        // check if we need to update the TotalDifficulty value
+        if (lowWork > block.getTotalDifficulty()) {
+            lowWork = block.getTotalDifficulty();
+        } else if (highWork < block.getTotalDifficulty()) {
+            highWork = block.getTotalDifficulty();
         }
 
+        // check if we need to update the date value
+        if (oldEarly.after(newDate)) {
+            earlyDate = block.getDate();
+        } else if (oldLate.before(newDate)) {
+            lateDate = block.getDate();
+        }
+
+        return new indexFile(oldIndex.getNumBlocks() + 1, lowIndex, highIndex, lowWork, highWork, earlyDate, lateDate);
     }
 
     /** Add block to LevelDB if it's one of the blocks requested
@@ -300,6 +617,7 @@ public class Blockchain {
         System.out.println("Syncing blocks..");
 
         Miner mine = new Miner();
+        List<CompletableFuture<Void>> stored = new ArrayList<>();
 
         for (Block b : blocks) {
             String h = mine.hash(b);
@@ -310,8 +628,8 @@ public class Blockchain {
 
                 if(calcMerkle.equals(b.getMerkleRoot())) {
                     System.out.println("we requested this block so start storing it..");
-                    storeBlock(h, b);
-                    System.out.println("finished storing it..");
+                    // all blocks of the list are queued before waiting, so the writer stores them in one group commit
+                    stored.add(submitBlock(h, b));
                     getRequest().remove(h);
                     System.out.println("removing it from request list");
                 }
@@ -325,6 +643,14 @@ public class Blockchain {
             }
         }
 
+        // wait until the received blocks are stored, so they can be read back straight away
+        try {
+            CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0])).get();
+            System.out.println("finished storing " + stored.size() + " blocks..");
+        } catch(Exception e) {
+            System.out.println("SYNC STORE ERR: " + e);
+        }
+
         // If some blocks were not sent by the user, request them again
         if(!getRequest().isEmpty()) {
             System.out.println("not all blocks received, so return false..");
@@ -401,13 +727,12 @@ public class Blockchain {
     public boolean validateInChain(Block block) {
         String pHash = block.getPreviousHash();
 
-        Block pBlock = getBlock(pHash);
-
         if (pHash.equals("GENESIS") && block.getIndex() == 1) {
             return true;
         }
 
-        else if(pBlock != null) {
+        // the parent may still be waiting in the block writer
+        else if(hasBlock(pHash) || writer.getQueued(pHash) != null) {
             return true;
         }
 
@@ -425,14 +750,12 @@ public class Blockchain {
         System.out.println("validating if in chain..");
         String pHash = header.getPrevHash();
 
-        Block pBlock = getBlock(pHash);
-
         if (pHash.equals("GENESIS") && header.getIndex() == 1) {
             System.out.println("ph is genesis or index is 1");
             return true;
         }
 
-        else if(pBlock != null || pHash.equals(inChain)) {
+        else if(pHash.equals(inChain) || hasBlock(pHash)) {
             System.out.println("no block found or ph equals hash given");
             return true;
         }
@@ -456,13 +779,11 @@ public class Blockchain {
                 SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
 
                 // Get the child block and its date
-                byte[] res = read(getIndexDB(), ("b"+b.getPreviousHash()).getBytes());
-                indexBlock prevBlock = (indexBlock) SerializationUtils.deserialize(res);
+                indexBlock prevBlock = getStoredOrQueuedHeader(b.getPreviousHash());
                 Date parent = sdf.parse(prevBlock.getDate());
 
                 // Get the grandchild block and its date
-                byte[] res2 = read(getIndexDB(), ("b"+prevBlock.getPrevHash()).getBytes());
-                indexBlock prevBlock2 = (indexBlock) SerializationUtils.deserialize(res2);
+                indexBlock prevBlock2 = getStoredOrQueuedHeader(prevBlock.getPrevHash());
                 Date child = sdf.parse(prevBlock2.getDate());
 
                 // Calculate the difference in block creation between blocks to the nearest second
@@ -540,6 +861,21 @@ public class Blockchain {
         return valid;
     }
 
+    /** Returns the header of a block that is stored, or that is still waiting in the block writer
+     * @param hash The hash of the block
+     * @return Returns the header (or null if the block is neither stored nor queued)
+     */
+    private indexBlock getStoredOrQueuedHeader(String hash) {
+        indexBlock header = getHeader(hash);
+        if(header == null) {
+            Block b = writer.getQueued(hash);
+            if(b != null) {
+                header = new indexBlock(b.getIndex(), b.getDifficultyLevel(), b.getTotalDifficulty(), fileNum, b.getDate(), b.getPreviousHash(), b.getMerkleRoot(), b.getNonce());
+            }
+        }
+        return header;
+    }
+
     /** Check that the difficulty levels in block headers are valid, ie. totalDifficulty count is correct, and individual difficultyLevel matches current consensus level
      * @param h The header we are doing validation on
      * @param h2 The child header
@@ -642,32 +978,10 @@ public class Blockchain {
         try {
             if(chainTip != null) {
                 if(!chainTip.getPrevHash().equals("GENESIS")) {
-
-                    // Get chaintip date
-                    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-                    Date parent = sdf.parse(chainTip.getDate());
-
                     // Get chaintip header
-                    byte[] res = read(getIndexDB(), ("b"+chainTip.getPrevHash()).getBytes());
-                    indexBlock prevBlock = (indexBlock) SerializationUtils.deserialize(res);
-
-                    // Get chaintip child date
-                    Date child = sdf.parse(prevBlock.getDate());
-
-                    // Calculate difference in block creation to the nearest second
-                    long diffSeconds = (parent.getTime() - child.getTime()) / 1000;
-                    System.out.println("difference in seconds between blocks: " + diffSeconds);
+                    indexBlock prevBlock = getHeader(chainTip.getPrevHash());
 
-                    // Difficulty should be increased..
-                    if (diffSeconds < blockInterval) {
-                        System.out.println("difficulty is increased..");
-                        val = chainTip.getDifficultyLevel() * 2;
-                    }
-                    // Difficulty should be lowered..
-                    else if (diffSeconds > blockInterval) {
-                        System.out.println("difficulty is decreased..");
-                        val = chainTip.getDifficultyLevel() / 2;
-                    }
+                    val = getDifficulty(chainTip.getDate(), chainTip.getDifficultyLevel(), prevBlock.getDate());
                 }
             }
         }
@@ -683,24 +997,77 @@ public class Blockchain {
         return val;
     }
 
+    /** Calculate the difficulty level of the block that follows a given tip
+     * @param tipDate The date of the tip block
+     * @param tipDifficulty The difficulty level of the tip block
+     * @param parentDate The date of the block before the tip
+     * @return The difficulty level the block after the tip should be at
+     */
+    public static long getDifficulty(String tipDate, long tipDifficulty, String parentDate) throws ParseException {
+        long val = 1;
+
+        // Get chaintip date and chaintip child date
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        Date parent = sdf.parse(tipDate);
+        Date child = sdf.parse(parentDate);
+
+        // Calculate difference in block creation to the nearest second
+        long diffSeconds = (parent.getTime() - child.getTime()) / 1000;
+        System.out.println("difference in seconds between blocks: " + diffSeconds);
+
+        // Difficulty should be increased..
+        if (diffSeconds < blockInterval) {
+            System.out.println("difficulty is increased..");
+            val = tipDifficulty * 2;
+        }
+        // Difficulty should be lowered..
+        else if (diffSeconds > blockInterval) {
+            System.out.println("difficulty is decreased..");
+            val = tipDifficulty / 2;
+        }
+
+        // min difficulty should be 1
+        if(val < 1) {
+            val = 1;
+        }
+
+        return val;
+    }
+
     /** Store the block we will validate later
      * @param b The block we want to store
      * @param pa The address of the peer we received this block from
      */
     public void addUnofficial(Block b, PeerAddress pa) {
         unofficial uo = new unofficial(b, pa);
-        unofficial.addFirst(uo);
+        synchronized(unofficial) {
+            unofficial.addFirst(uo);
+        }
     }
 
-    /** Validate and store the unofficial blocks we received from the peer
+    /** Validate and store the unofficial blocks we received from the peer. Runs on TomP2P reply threads and on the
+     *  block writer thread (after a block is stored), the list is locked meanwhile so only one of them goes through it
      * @param pa The address of the peer
      */
     public void checkUnofficial(PeerAddress pa) {
+        synchronized(unofficial) {
+            checkUnofficialLocked(pa);
+        }
+    }
+
+    private void checkUnofficialLocked(PeerAddress pa) {
         try {
             // loop over all blocks
-            for (unofficial ub : unofficial) {
+            Iterator<unofficial> it = unofficial.iterator();
+            while (it.hasNext()) {
+                unofficial ub = it.next();
                 // check if we received the block from this peer
                 if (ub.getPeer().equals(pa)) {
+                    // the block is stored right here, so its parent has to be stored first, not just queued
+                    // (the writer runs checkUnofficial() again for the peer once the parent is stored)
+                    if (writer.getQueued(ub.getBlock().getPreviousHash()) != null) {
+                        throw new Exception();
+                    }
                     // check if block is in chain
                     if (validateInChain(ub.getBlock())) {
                         // check if the difficulty levels of the block are valid
@@ -716,7 +1083,7 @@ public class Blockchain {
                             if(valid) {
                                 // all valid, so store and remove from list
                                 storeBlock(new Miner().hash(ub.getBlock()), ub.getBlock());
-                                unofficial.remove(ub);
+                                it.remove();
                             }
                         }
                         else {
@@ -738,28 +1105,14 @@ public class Blockchain {
      *  @return Returns the hash of the latest confirmed block
      */
     public String getConfirmed() {
-        int count = 1;
-        String hash = "GENESIS";
-        if(getChainTip() != null) {
-            hash = getChainTip().getPrevHash();
-        }
-
-        // TODO; needs more testing, should probably request whole chain just in case
-        while(count != 30) {
-            Block b = getBlock(hash);
-
-            // Reached end of chain, ie. user doesn't have 30 blocks in its DB so we just go as far as possible
-            if(b == null) {
-                return hash;
-            }
-
-            else {
-                hash = b.getPreviousHash();
-                count++;
-            }
+        // the block 30 below the chaintip, or the start of the chain if it isn't that long yet
+        long confirmed = currentIndex - 30;
+        if(getChainTip() == null || confirmed < 1) {
+            return "GENESIS";
         }
 
-        return hash;
+        String hash = getHashAt(confirmed);
+        return (hash == null) ? "GENESIS" : hash;
     }
 
     /** Get the blocks another peer has requested from us
@@ -774,8 +1127,11 @@ public class Blockchain {
 
         for (String h : hashes) {
             System.out.println("we need hash: " + h);
-            byte[] contents = read(getBlockDB(), h.getBytes() );
-            Block b = (Block) SerializationUtils.deserialize(contents);
+            Block b = readBlock(h);
+            if(b == null) {
+                System.out.println("we don't have the body of " + h + (isPruned(h) ? " (pruned)" : ""));
+                continue;
+            }
             System.out.println("got block with ph: " + b.getPreviousHash());
             blockList.addLast(b); // order won't matter later
             System.out.println("block added: " + new Miner().hash(b));
@@ -785,28 +1141,73 @@ public class Blockchain {
         return blockList;
     }
 
+    /** Builds the Merkle proof of a transaction for a peer
+     * @param blockHash The hash of the block containing the transaction, or null to look it up in the cohort window
+     * @param txHash The hash of the transaction
+     * @return Returns the proof, or null if we don't have the block or it doesn't contain the transaction
+     */
+    public MerkleTree.merkleProof getMerkleProof(String blockHash, String txHash) {
+        try {
+            if(blockHash == null) {
+                // only unexpired txs can be asked for without a block, the window knows which main chain block has them
+                // (a tx it doesn't know costs one lookup, the chain isn't searched)
+                refreshWindow();
+                blockHash = window.blockOf(txHash);
+                if(blockHash == null) {
+                    return null;
+                }
+            }
+
+            Block b = getBlock(blockHash);
+            return (b == null) ? null : new Miner().getMerkleProof(blockHash, b, txHash);
+        } catch(Exception e) {
+            System.out.println("MERKLE PROOF ERR: " + e);
+            return null;
+        }
+    }
+
+    /** Checks a Merkle proof against the merkle root of the block header we have stored
+     * @param proof The proof received from a peer
+     * @return Returns whether the transaction is part of the block (true) or not (false)
+     */
+    public boolean verifyProof(MerkleTree.merkleProof proof) {
+        try {
+            indexBlock header = getHeader(proof.getBlockHash());
+            if(header == null) {
+                System.out.println("we don't have the header of block " + proof.getBlockHash());
+                return false;
+            }
+            // a tx in a side-chain block isn't confirmed
+            if(!proof.getBlockHash().equals(getHashAt(header.getIndex()))) {
+                System.out.println("block " + proof.getBlockHash() + " is not in the main chain");
+                return false;
+            }
+
+            return MerkleTree.verify(Hashing.fromHex(proof.getTxHash()), proof, Hashing.fromHex(header.getMerkleRoot()));
+        } catch(Exception e) {
+            System.out.println("VERIFY PROOF ERR: " + e);
+            return false;
+        }
+    }
+
     /** Get the headers of the blocks another peer has requested from us
      * @param h The hash from which the other peer wants to build upon
      * @return Returns the LinkedList of headers the peer has requested
      */
     public LinkedList<indexBlock> getHeaders(String h) {
         System.out.println("Getting chain headers..");
-        LinkedList<indexBlock> headerList = new LinkedList<>();
 
-        // add chainTip
-        indexBlock header = getChainTip();
-        headerList.addFirst(header);
-        System.out.println("added chaintip header..");
-
-        // check if we need to go further down the chain
-        while( !(header.getPrevHash().equals(h)) || (header.getPrevHash().equals("GENESIS")) ) {
-            String prevHash = header.getPrevHash();
-            byte[] contents = read(getIndexDB(), ("b"+prevHash).getBytes() );
-            header = (indexBlock) SerializationUtils.deserialize(contents);
-            headerList.addFirst(header);
-            System.out.println("added: " + header.toString());
+        // start right above the block the peer has, or from the start if it isn't in our main chain
+        long from = 1;
+        if(!h.equals("GENESIS")) {
+            indexBlock header = getHeader(h);
+            if(header != null && h.equals(getHashAt(header.getIndex()))) {
+                from = header.getIndex() + 1;
+            }
         }
-        System.out.println("finished getting headers..");
+
+        LinkedList<indexBlock> headerList = getHeaders(from, currentIndex);
+        System.out.println("finished getting " + headerList.size() + " headers..");
 
         return headerList;
     }
@@ -817,46 +1218,184 @@ public class Blockchain {
      */
     public Block getBlock(String keyHash) {
         try {
-            byte[] contents = read(getBlockDB(), keyHash.getBytes());
-            Block b = (Block) SerializationUtils.deserialize(contents);
-            return b;
+            return readBlock(keyHash);
         } catch(Exception e) {
             System.out.println("GET BLOCK ERR: " + e);
             return null;
-        } finally {
-            finish(getBlockDB());
         }
     }
 
-    /** Create/Open LevelDB that stores block
-     * @return Returns the blockDB database
+    /** Reads a block from its block file
+     * @param hash The hash of the block we want to read
+     * @return Returns the block (or null if we don't have it)
+     */
+    private Block readBlock(String hash) {
+        return readBlock(hash, getHeader(hash));
+    }
+
+    /** Reads a block whose header we already have
+     * @param hash The hash of the block we want to read
+     * @param header The header of the block (or null if we don't have it)
+     * @return Returns the block (or null if we don't have it)
+     */
+    private Block readBlock(String hash, indexBlock header) {
+        Block b = blockCache.get(hash);
+        if(b != null) {
+            return b;
+        }
+
+        if(header != null && header.hasLocation()) {
+            if(prunedFiles.contains(header.getFileNumber())) {
+                return null;
+            }
+            try {
+                b = (Block) BinaryCodec.decode(BlockFiles.read(header.getFileNumber(), header.getOffset(), header.getLength()));
+                blockCache.put(hash, b, BlockCache.footprint(b));
+                return b;
+            } catch(IOException ioe) {
+                System.out.println("READ BLOCK FILE IOE ERROR: " + ioe);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** Deletes the block bodies nobody needs anymore: every block file (except the one still appended to) whose latest
+     *  block has expired and whose highest block is at least pruneDepth below the chaintip. The headers are kept, so the
+     *  chain can still be validated and served as headers
+     * @return Returns the number of block files deleted
      */
-    public DB getBlockDB() {
+    public synchronized int prune() {
+        int count = 0;
         try {
-            options.createIfMissing(true);
-            blockDB = factory.open(new File(("blocks" + fileNum)), options);
-            return blockDB;
+            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+            long now = sdf.parse(Transaction.makeDate()).getTime();
+
+            for(int n = 0; n < fileNum; n++) {
+                indexFile file = prunedFiles.contains(n) ? null : getFileHeader(n);
+                if(file == null || !prunable(file.getLateDate(), file.getHighIndex(), now, sdf)) {
+                    continue;
+                }
+
+                // the marker goes in first, a crash before the delete just leaves a file that is never read again
+                add(getIndexDB(), ("pruned" + n).getBytes(), new byte[0]);
+                prunedFiles.add(n);
+                BlockFiles.delete(n);
+                System.out.println("pruned block file " + BlockFiles.fileName(n));
+                count++;
+            }
+        } catch(Exception e) {
+            System.out.println("PRUNE ERR: " + e);
+        }
+
+        if(count > 0) {
+            blockCache.clear();
+        }
+        return count;
+    }
+
+    /** Checks whether blocks up to a date and height can be pruned
+     * @param date The latest date of the blocks
+     * @param index The highest index of the blocks
+     * @param now The current time in milliseconds
+     * @param sdf The date format of blocks
+     * @return Returns whether all their cohorts have expired and they are deep enough below the chaintip (true) or not (false)
+     */
+    private boolean prunable(String date, long index, long now, SimpleDateFormat sdf) throws ParseException {
+        return (now - sdf.parse(date).getTime()) / 1000 >= expiredTime && currentIndex - index >= pruneDepth;
+    }
+
+    /** Checks whether we had a block but have pruned its body
+     * @param hash The hash of the block
+     * @return Returns whether only the header of the block is left (true) or not (false)
+     */
+    public boolean isPruned(String hash) {
+        indexBlock header = hasBlock(hash) ? getHeader(hash) : null;
+        if(header == null) {
+            return false;
+        }
+        return header.hasLocation() && prunedFiles.contains(header.getFileNumber());
+    }
+
+    /** Checks whether we have a block, without reading its body
+     * @param hash The hash of the block
+     * @return Returns whether we have stored the block (true) or not (false)
+     */
+    public boolean hasBlock(String hash) {
+        // most hashes we don't have are answered by the filter, the rest (and every hash we do have) by the header
+        return known.mightContain(hash) && getHeader(hash) != null;
+    }
+
+    /** Builds the Bloom filter of known blocks from the block headers in the indexDB */
+    private synchronized void rebuildFilter() {
+        List<String> hashes = new ArrayList<>();
+        DB indexDB = getIndexDB();
+        try (DBIterator it = indexDB.iterator()) {
+            for(it.seek("b".getBytes()); it.hasNext(); ) {
+                String key = new String(it.next().getKey(), StandardCharsets.UTF_8);
+                if(!key.startsWith("b")) {
+                    break;
+                }
+                hashes.add(key.substring(1));
+            }
         } catch(IOException ioe) {
-            System.out.println("GET BLOCK_DB IOE ERROR: " + ioe);
+            System.out.println("BLOOM FILTER IOE ERROR: " + ioe);
+        } finally {
+            finish(indexDB);
+        }
+
+        BloomFilter filter = new BloomFilter(Math.max(bloomCapacity, hashes.size() * 2L), bloomFpp);
+        for(String hash : hashes) {
+            filter.add(hash);
+        }
+        known = filter;
+        System.out.println("bloom filter built with " + hashes.size() + " known blocks");
+    }
+
+    /** Reads a block header, from the header cache if it was used recently
+     * @param hash The hash of the block
+     * @return Returns the header (or null if we don't have it)
+     */
+    public indexBlock getHeader(String hash) {
+        indexBlock header = headerCache.get(hash);
+        if(header != null) {
+            return header;
+        }
+
+        byte[] res = read(getIndexDB(), ("b"+hash).getBytes());
+        if(res == null) {
             return null;
         }
+        header = (indexBlock) BinaryCodec.decode(res);
+        headerCache.put(hash, header, BlockCache.footprint(header));
+        return header;
     }
 
-    /** Create/Open LevelDB that stores block headers
+    /** Returns the LevelDB that stores block headers (opened once and shared, see Storage)
      * @return Returns the indexDB database
      */
     public DB getIndexDB() {
-        try {
-            options.createIfMissing(true);
-            indexDB = factory.open(new File("index"), options);
-            return indexDB;
-        } catch(IOException ioe) {
-            System.out.println("GET INDEX_DB IOE ERROR: " + ioe);
-            return null;
-        }
+        return Storage.open("index");
+    }
+
+    /** Returns the unexpired cohorts of the main chain (call getCohorts() first, it loads and expires them)
+     * @return Returns the cohort window
+     */
+    public CohortWindow getCohortWindow() {
+        return window;
+    }
+
+    /** Returns the cache of recently used block headers (for its hit/miss counters) */
+    public BlockCache<indexBlock> getHeaderCache() {
+        return headerCache;
     }
 
-    /** Gets the current index number of the file
+    /** Returns the cache of recently used blocks (for its hit/miss counters) */
+    public BlockCache<Block> getBlockCache() {
+        return blockCache;
+    }
+
+    /** Gets the number of the block file new blocks are appended to
      * @return Returns the index of the file */
     public int getFileNum() {
         return fileNum;
@@ -901,6 +1440,26 @@ public class Blockchain {
     /** Sets the current difficulty level of the chaintip */
     public void setCurrentDifficultyTotal(long currentDifficultyTotal) { this.currentDifficultyTotal = currentDifficultyTotal; }
 
+    /** Registers a callback that runs (on the storing thread) every time the chaintip moves
+     * @param listener The callback to run
+     */
+    public void addTipListener(Runnable listener) {
+        tipListeners.add(listener);
+    }
+
+    /** Removes a previously registered chaintip callback
+     * @param listener The callback to remove
+     */
+    public void removeTipListener(Runnable listener) {
+        tipListeners.remove(listener);
+    }
+
+    private void notifyTipListeners() {
+        for (Runnable listener : tipListeners) {
+            listener.run();
+        }
+    }
+
     /** Returns the request blocks inside an ArrayList of Strings */
     public ArrayList<String> getRequest() {
         return request;
@@ -909,6 +1468,7 @@ public class Blockchain {
 
 /** The header of the file object */
 class indexFile implements Serializable {
+    private static final long serialVersionUID = -5774335632111244912L;
     public int numBlocks;
     public long lowIndex;
     public long highIndex;
@@ -971,6 +1531,7 @@ class indexFile implements Serializable {
 
 /** The header of the block */
 class indexBlock implements Serializable {
+    private static final long serialVersionUID = 3025691334823854912L;
     public long index;
     public long difficultyLevel;
     public int fileNumber;
@@ -981,6 +1542,9 @@ class indexBlock implements Serializable {
     public long nonce;
     public long totalDifficulty;
 
+    public long offset;     // where the block body is inside its block file (see BlockFiles)
+    public int length;      // length of the encoded block body, 0 until the body is written
+
     public indexBlock(long index, long difficultyLevel, long totalWork, int fileNumber, String date, String prevHash, String mr, long n) {
         this.index = index;
         this.difficultyLevel = difficultyLevel;
@@ -1020,6 +1584,19 @@ class indexBlock implements Serializable {
 
     public long getNonce() { return nonce; }
 
+    public long getOffset() { return offset; }
+
+    public int getLength() { return length; }
+
+    /** Returns whether the block body was written to a block file (true) or not yet (false) */
+    public boolean hasLocation() { return length > 0; }
+
+    /** Records where the block body was appended inside the block file 'fileNumber' */
+    public void setLocation(long offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
     @Override
     public String toString() {
         return "Block{" +
@@ -0,0 +1,83 @@
+/** Bloom filter of block hashes, used to answer "do we have block X" without a database read.
+ *  A 'no' is always right, a 'maybe' has to be checked against the indexDB (see Blockchain.hasBlock()),
+ *  false 'maybe's happen for about 'fpp' of the hashes we don't have while no more than 'capacity' hashes are added */
+public class BloomFilter {
+    private final long[] bits;
+    private final int numBits;
+    private final int numHashes;
+    private final long capacity;
+    private long count = 0;
+
+    /**
+     * @param capacity The number of hashes the filter is sized for
+     * @param fpp The false positive probability wanted at that many hashes, eg. 0.01
+     */
+    public BloomFilter(long capacity, double fpp) {
+        this.capacity = Math.max(capacity, 1);
+        // m = -n ln(p) / (ln 2)^2 and k = m/n ln 2
+        long m = (long) Math.ceil(-this.capacity * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        this.numBits = (int) Math.max(64, Math.min(m, Integer.MAX_VALUE - 63));
+        this.numHashes = (int) Math.max(1, Math.round((double) numBits / this.capacity * Math.log(2)));
+        this.bits = new long[(numBits + 63) / 64];
+    }
+
+    /** Adds a hash to the filter
+     * @param key The hash of the block
+     */
+    public synchronized void add(String key) {
+        long h = hash64(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for(int x = 1; x <= numHashes; x++) {
+            int bit = ((h1 + x * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+    }
+
+    /** Checks whether a hash may have been added to the filter
+     * @param key The hash of the block
+     * @return Returns false if the hash was never added, true if it probably was
+     */
+    public synchronized boolean mightContain(String key) {
+        long h = hash64(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for(int x = 1; x <= numHashes; x++) {
+            int bit = ((h1 + x * h2) & Integer.MAX_VALUE) % numBits;
+            if((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns whether more hashes have been added than the filter was sized for (it should then be rebuilt larger) */
+    public synchronized boolean isFull() {
+        return count > capacity;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /** 64 bit FNV-1a of the characters, finished with the MurmurHash3 mix so both halves are usable on their own
+     *  (the two halves are combined as h1 + x*h2 for the x'th bit, see Kirsch and Mitzenmacher) */
+    private static long hash64(String key) {
+        long h = 0xcbf29ce484222325L;
+        for(int x = 0; x < key.length(); x++) {
+            h ^= key.charAt(x);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
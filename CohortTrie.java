@@ -0,0 +1,213 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Binary trie of cohort hashes ('0'/'1' strings), every node counts the cohorts below it, so the number of cohorts
+ *  sharing a prefix, and the longest prefix of a hash shared by at least k cohorts (PrefixLSH), take one walk down
+ *  the trie of at most one step per bit instead of going through every cohort.
+ *  Each node keeps both the number of cohorts (a cohort added twice counts twice) and the number of distinct cohorts */
+public class CohortTrie {
+    private final trieNode root = new trieNode();
+
+    /** Adds a cohort hash
+     * @param cohort The cohort hash, made of '0'/'1' characters
+     * @return Returns whether the cohort was added (false if it isn't a '0'/'1' string)
+     */
+    public boolean add(String cohort) {
+        trieNode[] path = path(cohort, true);
+        if(path == null) {
+            return false;
+        }
+
+        trieNode leaf = path[cohort.length()];
+        boolean first = leaf.ends++ == 0;
+        for(trieNode n : path) {
+            n.count++;
+            if(first) {
+                n.distinct++;
+            }
+        }
+        return true;
+    }
+
+    /** Removes a cohort hash (once, if it was added more than once)
+     * @param cohort The cohort hash
+     * @return Returns whether the cohort was found and removed
+     */
+    public boolean remove(String cohort) {
+        trieNode[] path = path(cohort, false);
+        if(path == null || path[cohort.length()] == null || path[cohort.length()].ends == 0) {
+            return false;
+        }
+
+        boolean last = --path[cohort.length()].ends == 0;
+        for(int x = cohort.length(); x >= 0; x--) {
+            trieNode n = path[x];
+            n.count--;
+            if(last) {
+                n.distinct--;
+            }
+            // drop the branches that are empty now
+            if(x > 0 && n.count == 0) {
+                path[x - 1].setChild(cohort.charAt(x - 1), null);
+            }
+        }
+        return true;
+    }
+
+    /** Finds the longest prefix of a cohort hash that at least k distinct cohorts start with
+     * @param cohort The cohort hash
+     * @param k The min. number of distinct cohorts
+     * @return Returns the length of the prefix (0 if only the empty prefix is shared by k cohorts, -1 if not even that)
+     */
+    public int longestPrefix(String cohort, int k) {
+        trieNode n = root;
+        if(n.distinct < k) {
+            return -1;
+        }
+
+        int length = 0;
+        while(length < cohort.length()) {
+            n = n.child(cohort.charAt(length));
+            if(n == null || n.distinct < k) {
+                break;
+            }
+            length++;
+        }
+        return length;
+    }
+
+    /** Partitions all cohorts into k-anonymous prefixes (PrefixLSH): starting from the empty prefix, a prefix is split
+     *  into its two children only if each of them is shared by at least k distinct cohorts, otherwise it is final.
+     *  Subtrees are split in parallel on the common fork-join pool, the trie must not change meanwhile
+     * @param k The min. number of distinct cohorts of a prefix
+     * @return Returns the final prefixes and the number of cohorts (counting repeats) in each, sorted by prefix
+     *         (empty if there are fewer than k distinct cohorts in all)
+     */
+    public TreeMap<String, Integer> partition(int k) {
+        ConcurrentSkipListMap<String, Integer> result = new ConcurrentSkipListMap<>();
+        if(root.distinct >= k) {
+            ForkJoinPool.commonPool().invoke(new partitionTask(root, "", k, result));
+        }
+        return new TreeMap<>(result);
+    }
+
+    /** Returns the number of cohorts (counting repeats) starting with a prefix */
+    public int count(String prefix) {
+        trieNode n = find(prefix);
+        return (n == null) ? 0 : n.count;
+    }
+
+    /** Returns the number of distinct cohorts starting with a prefix */
+    public int distinct(String prefix) {
+        trieNode n = find(prefix);
+        return (n == null) ? 0 : n.distinct;
+    }
+
+    /** Returns the number of cohorts in the trie (counting repeats) */
+    public int size() {
+        return root.count;
+    }
+
+    private trieNode find(String prefix) {
+        trieNode n = root;
+        for(int x = 0; x < prefix.length() && n != null; x++) {
+            n = n.child(prefix.charAt(x));
+        }
+        return n;
+    }
+
+    /** Returns the nodes from the root down to a cohort (creating the missing ones if 'create' is set, otherwise the
+     *  entries past the end of the trie are null), or null if the cohort isn't a '0'/'1' string */
+    private trieNode[] path(String cohort, boolean create) {
+        trieNode[] path = new trieNode[cohort.length() + 1];
+        trieNode n = root;
+        path[0] = n;
+        for(int x = 0; x < cohort.length(); x++) {
+            char c = cohort.charAt(x);
+            if(c != '0' && c != '1') {
+                return null;
+            }
+            trieNode next = n.child(c);
+            if(next == null) {
+                if(!create) {
+                    return path;
+                }
+                next = new trieNode();
+                n.setChild(c, next);
+            }
+            n = next;
+            path[x + 1] = n;
+        }
+        return path;
+    }
+}
+
+/** Splits the subtree of a prefix for CohortTrie.partition(), small subtrees are split on the current thread */
+class partitionTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private static final int FORK_MIN = 1024;   // min. distinct cohorts of a subtree to split it in parallel
+
+    private final trieNode node;
+    private final String prefix;
+    private final int k;
+    private final Map<String, Integer> result;
+
+    partitionTask(trieNode node, String prefix, int k, Map<String, Integer> result) {
+        this.node = node;
+        this.prefix = prefix;
+        this.k = k;
+        this.result = result;
+    }
+
+    @Override
+    protected void compute() {
+        if(node.distinct < FORK_MIN) {
+            split(node, prefix);
+            return;
+        }
+        if(!splits(node)) {
+            result.put(prefix, node.count);
+            return;
+        }
+        invokeAll(new partitionTask(node.zero, prefix + '0', k, result), new partitionTask(node.one, prefix + '1', k, result));
+    }
+
+    private void split(trieNode n, String p) {
+        if(!splits(n)) {
+            result.put(p, n.count);
+            return;
+        }
+        split(n.zero, p + '0');
+        split(n.one, p + '1');
+    }
+
+    /** Whether both children of a prefix are shared by k distinct cohorts */
+    private boolean splits(trieNode n) {
+        return n.zero != null && n.one != null && n.zero.distinct >= k && n.one.distinct >= k;
+    }
+}
+
+/** A node of the cohort trie, ie. a prefix */
+class trieNode {
+    trieNode zero;
+    trieNode one;
+    int count = 0;      // cohorts starting with this prefix
+    int distinct = 0;   // distinct cohorts starting with this prefix
+    int ends = 0;       // cohorts that are exactly this prefix
+
+    trieNode child(char bit) {
+        return (bit == '0') ? zero : (bit == '1') ? one : null;
+    }
+
+    void setChild(char bit, trieNode node) {
+        if(bit == '0') {
+            zero = node;
+        }
+        else {
+            one = node;
+        }
+    }
+}
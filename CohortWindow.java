@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/** The cohort transactions of the main chain that haven't expired yet, kept up to date as blocks connect and disconnect
+ *  and as they expire, so Blockchain.getCohorts() doesn't have to go through the chain every time.
+ *  A tx of a block stays in the window until its own date or the date of its block is 'expiredTime' seconds old
+ *  (the same rule the chain scan uses), a tx that is in several blocks stays until the last of them is gone.
+ *  The cohorts of the txs in the window are also kept in a CohortTrie, for cohort ID lookups (see BlockLSH), and the
+ *  members by tx hash, to find the block of a tx for a Merkle proof (see Blockchain.getMerkleProof()).
+ *  The txs are scheduled on a TimingWheel by the time they expire, which hands them back once they have */
+public class CohortWindow {
+    private final TreeMap<Transaction, Integer> counts = new TreeMap<>();          // tx -> number of blocks it is in the window for
+    private final TimingWheel<member> expiry = new TimingWheel<>(1000);            // every member, by the time it expires
+    private final Map<String, windowBlock> blocks = new HashMap<>();               // block hash -> its members, while any of them is in the window
+    private final CohortTrie trie = new CohortTrie();                              // cohort of every tx in 'counts'
+    private final Map<String, List<member>> byHash = new HashMap<>();              // tx hash -> its members, in the order they joined
+    private volatile TreeSet<Transaction> snapshot = new TreeSet<>();
+    private boolean changed = false;
+
+    private final TimingWheel.ExpiryListener<member> expired = new TimingWheel.ExpiryListener<member>() {
+        @Override
+        public void expired(member m) {
+            release(m);
+
+            // forget the block once none of its txs are left
+            if(--m.block.live == 0) {
+                blocks.remove(m.block.hash);
+            }
+        }
+    };
+
+    /** Adds the txs of a block that joined the main chain
+     * @param hash The hash of the block
+     * @param b The block
+     * @param now The current time in milliseconds
+     * @param expiredTime The number of seconds a tx is valid for
+     */
+    public synchronized void connect(String hash, Block b, long now, long expiredTime) {
+        if(blocks.containsKey(hash) || b.getTransactions() == null) {
+            return;
+        }
+
+        if(expiry.size() == 0) {
+            // start the clock of the wheel at 'now' rather than at the first tx
+            expiry.advance(now, expired);
+        }
+
+        long blockDate = Hashing.dateToMillis(b.getDate());
+        windowBlock added = new windowBlock();
+        for(Transaction tx : b.getTransactions()) {
+            long expires = Math.min(blockDate, Hashing.dateToMillis(tx.getDate())) + expiredTime * 1000;
+            if(expires <= now) {
+                continue;
+            }
+
+            member m = new member(added, tx, expires);
+            added.members.add(m);
+            added.live++;
+            m.timer = expiry.schedule(m, expires);
+            Integer count = counts.get(tx);
+            counts.put(tx, (count == null) ? 1 : count + 1);
+            if(count == null) {
+                trie.add(tx.getCohort());
+            }
+
+            String txHash = Hashing.hash(tx);
+            List<member> same = byHash.get(txHash);
+            if(same == null) {
+                same = new ArrayList<>(1);
+                byHash.put(txHash, same);
+            }
+            same.add(m);
+        }
+
+        if(added.live > 0) {
+            added.hash = hash;
+            blocks.put(hash, added);
+            changed = true;
+        }
+    }
+
+    /** Removes the txs of a block that left the main chain (after a reorg)
+     * @param hash The hash of the block
+     */
+    public synchronized void disconnect(String hash) {
+        windowBlock removed = blocks.remove(hash);
+        if(removed == null) {
+            return;
+        }
+        for(member m : removed.members) {
+            // the members that expired already were released by then
+            if(expiry.cancel(m.timer)) {
+                release(m);
+            }
+        }
+    }
+
+    /** Applies a chaintip change in one go, so nobody sees the window halfway through a reorg
+     * @param disconnected The hashes of the blocks that left the main chain
+     * @param connectedHashes The hashes of the blocks that joined the main chain
+     * @param connectedBlocks The blocks that joined the main chain (same order as their hashes)
+     * @param now The current time in milliseconds
+     * @param expiredTime The number of seconds a tx is valid for
+     */
+    public synchronized void update(List<String> disconnected, List<String> connectedHashes, List<Block> connectedBlocks, long now, long expiredTime) {
+        for(String hash : disconnected) {
+            disconnect(hash);
+        }
+        for(int x = 0; x < connectedHashes.size(); x++) {
+            connect(connectedHashes.get(x), connectedBlocks.get(x), now, expiredTime);
+        }
+        expire(now);
+    }
+
+    /** Removes the txs that have expired by now
+     * @param now The current time in milliseconds
+     */
+    public synchronized void expire(long now) {
+        expiry.advance(now, expired);
+    }
+
+    /** Returns the txs in the window. The set is only copied when the window has changed since the last call,
+     *  it is shared and must not be modified
+     * @return Returns the unexpired txs of the main chain
+     */
+    public synchronized TreeSet<Transaction> getTransactions() {
+        if(changed) {
+            snapshot = new TreeSet<>(counts.navigableKeySet());
+            changed = false;
+        }
+        return snapshot;
+    }
+
+    /** Finds a block of the main chain that contains a tx, as long as the tx is in the window
+     * @param txHash The hash of the transaction
+     * @return Returns the hash of the block that added the tx to the window last, or null if the tx isn't in the window
+     */
+    public synchronized String blockOf(String txHash) {
+        List<member> same = byHash.get(txHash);
+        return (same == null) ? null : same.get(same.size() - 1).block.hash;
+    }
+
+    /** Finds the longest prefix of a cohort hash shared by at least k distinct cohorts in the window
+     * @param cohort The cohort hash
+     * @param k The min. number of distinct cohorts
+     * @return Returns the length of the prefix (see CohortTrie.longestPrefix())
+     */
+    public synchronized int longestPrefix(String cohort, int k) {
+        return trie.longestPrefix(cohort, k);
+    }
+
+    /** Partitions the cohorts in the window into k-anonymous prefixes (see CohortTrie.partition())
+     * @param k The min. number of distinct cohorts of a prefix
+     * @return Returns the final prefixes and the number of cohorts in each
+     */
+    public synchronized TreeMap<String, Integer> partition(int k) {
+        return trie.partition(k);
+    }
+
+    /** Empties the window */
+    public synchronized void clear() {
+        for(Transaction tx : counts.keySet()) {
+            trie.remove(tx.getCohort());
+        }
+        counts.clear();
+        expiry.clear();
+        blocks.clear();
+        byHash.clear();
+        snapshot = new TreeSet<>();
+        changed = false;
+    }
+
+    public synchronized int size() {
+        return counts.size();
+    }
+
+    private void release(member m) {
+        String txHash = Hashing.hash(m.tx);
+        List<member> same = byHash.get(txHash);
+        if(same != null && same.remove(m) && same.isEmpty()) {
+            byHash.remove(txHash);
+        }
+
+        Transaction tx = m.tx;
+        Integer count = counts.get(tx);
+        if(count == null) {
+            return;
+        }
+        if(count == 1) {
+            counts.remove(tx);
+            trie.remove(tx.getCohort());
+        }
+        else {
+            counts.put(tx, count - 1);
+        }
+        changed = true;
+    }
+}
+
+/** The members of one block in the window */
+class windowBlock {
+    String hash;
+    final List<member> members = new ArrayList<>();
+    int live = 0;           // members not expired yet
+}
+
+/** A tx in the window on behalf of one block */
+class member {
+    final windowBlock block;
+    final Transaction tx;
+    final long expires;         // time in milliseconds the tx leaves the window
+    wheelTimer<member> timer;   // its place on the expiry wheel
+
+    member(windowBlock block, Transaction tx, long expires) {
+        this.block = block;
+        this.tx = tx;
+        this.expires = expires;
+    }
+}
@@ -0,0 +1,485 @@
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+public class Hashing {
+    /** Binary block header layout (big-endian), the nonce is kept last so the first 96 bytes can be absorbed once per template:
+     *      index (8) | date as epoch millis (8) | previousHash (32) | merkleRoot (32) | difficultyLevel (8) | totalDifficulty (8) | nonce (8)
+     *  'GENESIS' previousHash and 'empty' merkleRoot are written as 32 zero bytes */
+    public static final int HEADER_SIZE = 104;
+    public static final int NONCE_OFFSET = 96;
+    public static final int HASH_SIZE = 32;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+    /** Every thread keeps its own digest and buffers, so hashing a header does not allocate */
+    private static final ThreadLocal<hashContext> contexts = new ThreadLocal<hashContext>() {
+        @Override
+        protected hashContext initialValue() {
+            return new hashContext();
+        }
+    };
+
+    /** Returns the hashing context of the calling thread
+     * @return Returns the per-thread digest and buffers
+     */
+    public static hashContext context() {
+        return contexts.get();
+    }
+
+    /** Hashes the binary header of a block and returns its hash as String (SHA256)
+     * @param b The block object we want to hash
+     * @return Returns the hash of the block header as a 64 character hex String
+     */
+    public static String hash(Block b) {
+        hashContext ctx = context();
+        ctx.loadHeader(b);
+        return toHex(ctx.digest(b.getNonce()));
+    }
+
+    /** Hashes the binary header of a block and counts the leading 0's of its hex representation
+     * @param b The block object we want to check
+     * @return Returns the number of leading zero nibbles of the block hash
+     */
+    public static int leadingZeros(Block b) {
+        hashContext ctx = context();
+        ctx.loadHeader(b);
+        return leadingZeroNibbles(ctx.digest(b.getNonce()));
+    }
+
+    /** Hashes a transaction and returns its hash as String (SHA256), the preimage is the same as its toString()
+     * @param tx The transaction object we want to hash
+     * @return Returns the hash of the transaction as a 64 character hex String
+     */
+    public static String hash(Transaction tx) {
+        return toHex(tx.getDigest());
+    }
+
+    /** Hashes a transaction into a new array (use tx.getDigest() to get the cached digest instead)
+     * @param tx The transaction object we want to hash
+     * @return Returns the 32 byte digest of the transaction (the raw form of hash(tx))
+     */
+    public static byte[] digest(Transaction tx) {
+        byte[] digest = new byte[HASH_SIZE];
+        context().digest(tx.toString().getBytes(), digest, 0);
+        return digest;
+    }
+
+    /** Hashes a transaction and counts the leading 0's of its hex representation
+     * @param tx The transaction object we want to check
+     * @return Returns the number of leading zero nibbles of the transaction hash
+     */
+    public static int leadingZeros(Transaction tx) {
+        return leadingZeroNibbles(tx.getDigest());
+    }
+
+    /** Writes the fixed-layout binary header of a block into a buffer
+     * @param b The block object we want to encode
+     * @param buf The buffer to write to (at least HEADER_SIZE bytes)
+     */
+    public static void writeHeader(Block b, byte[] buf) {
+        writeHeader(b, buf, 0);
+    }
+
+    /** Writes the fixed-layout binary header of a block into a buffer at an offset
+     * @param b The block object we want to encode
+     * @param buf The buffer to write to
+     * @param off The offset to start writing at (at least HEADER_SIZE bytes must follow)
+     */
+    public static void writeHeader(Block b, byte[] buf, int off) {
+        writeHeader(buf, off, b.getIndex(), b.getDate(), b.getPreviousHash(), b.getMerkleRoot(), b.getDifficultyLevel(), b.getTotalDifficulty(), b.getNonce());
+    }
+
+    /** Writes the fixed-layout binary header of a stored block header into a buffer (same bytes as for its Block)
+     * @param ib The block header we want to encode
+     * @param buf The buffer to write to
+     * @param off The offset to start writing at (at least HEADER_SIZE bytes must follow)
+     */
+    public static void writeHeader(indexBlock ib, byte[] buf, int off) {
+        writeHeader(buf, off, ib.getIndex(), ib.getDate(), ib.getPrevHash(), ib.getMerkleRoot(), ib.getDifficultyLevel(), ib.getTotalDifficulty(), ib.getNonce());
+    }
+
+    private static void writeHeader(byte[] buf, int off, long index, String date, String prevHash, String mr, long difficulty, long totalDifficulty, long nonce) {
+        putLong(buf, off, index);
+        putLong(buf, off + 8, dateToMillis(date));
+        putHash(buf, off + 16, prevHash, "GENESIS");
+        putHash(buf, off + 48, mr, "empty");
+        putLong(buf, off + 80, difficulty);
+        putLong(buf, off + 88, totalDifficulty);
+        putLong(buf, off + NONCE_OFFSET, nonce);
+    }
+
+    /** Counts how many hex characters at the start of a digest are '0'
+     * @param digest The raw digest bytes
+     * @return Returns the number of leading zero nibbles
+     */
+    public static int leadingZeroNibbles(byte[] digest) {
+        int count = 0;
+        for (byte d : digest) {
+            if(d == 0) {
+                count += 2;
+            }
+            else {
+                if((d & 0xF0) == 0) {
+                    count++;
+                }
+                break;
+            }
+        }
+        return count;
+    }
+
+    /** Compares a digest stored in an array against another digest as unsigned bytes (same order as their hex Strings)
+     * @param a The array holding the first digest
+     * @param off The offset of the first digest in 'a'
+     * @param b The second digest
+     * @return Returns a negative number, zero or a positive number if the first digest is smaller, equal or larger
+     */
+    public static int compare(byte[] a, int off, byte[] b) {
+        for(int x = 0; x < HASH_SIZE; x++) {
+            int cmp = (a[off + x] & 0xFF) - (b[x] & 0xFF);
+            if(cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Converts raw digest bytes into a lowercase hex String
+     * @param bytes The bytes we want to convert
+     * @return Returns the hex representation of the bytes
+     */
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for(int x = 0; x < bytes.length; x++) {
+            chars[x * 2] = HEX[(bytes[x] >> 4) & 0xF];
+            chars[x * 2 + 1] = HEX[bytes[x] & 0xF];
+        }
+        return new String(chars);
+    }
+
+    /** Converts a 64 character lowercase hex hash back into its 32 raw bytes
+     * @param hex The hash as a hex String
+     * @return Returns the raw digest bytes
+     */
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[HASH_SIZE];
+        putHash(bytes, 0, hex, null);
+        return bytes;
+    }
+
+    /** Converts a block date String into milliseconds, the String is read as UTC so every node gets the same value
+     * @param date The date in the 'yyyy-MM-dd HH:mm:ss.SSS' format
+     * @return Returns the date as epoch milliseconds
+     */
+    public static long dateToMillis(String date) {
+        // the layout is fixed, so the common case is read directly instead of going through a formatter
+        if(date.length() != 23 || date.charAt(4) != '-' || date.charAt(7) != '-' || date.charAt(10) != ' ' || date.charAt(13) != ':' || date.charAt(16) != ':' || date.charAt(19) != '.') {
+            return LocalDateTime.parse(date, DATE_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+        }
+        long days = LocalDate.of(digits(date, 0, 4), digits(date, 5, 2), digits(date, 8, 2)).toEpochDay();
+        long seconds = digits(date, 11, 2) * 3600L + digits(date, 14, 2) * 60L + digits(date, 17, 2);
+        return (days * 86400L + seconds) * 1000L + digits(date, 20, 3);
+    }
+
+    /** Converts milliseconds back into a block date String (the inverse of dateToMillis)
+     * @param millis The date as epoch milliseconds
+     * @return Returns the date in the 'yyyy-MM-dd HH:mm:ss.SSS' format
+     */
+    public static String millisToDate(long millis) {
+        LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(millis, 86400000L));
+        if(day.getYear() < 0 || day.getYear() > 9999) {
+            return LocalDateTime.ofEpochSecond(Math.floorDiv(millis, 1000), (int) Math.floorMod(millis, 1000L) * 1000000, ZoneOffset.UTC).format(DATE_FORMAT);
+        }
+        long ms = Math.floorMod(millis, 86400000L);
+
+        char[] c = new char[23];
+        putDigits(c, 0, 4, day.getYear());
+        c[4] = '-';
+        putDigits(c, 5, 2, day.getMonthValue());
+        c[7] = '-';
+        putDigits(c, 8, 2, day.getDayOfMonth());
+        c[10] = ' ';
+        putDigits(c, 11, 2, (int) (ms / 3600000));
+        c[13] = ':';
+        putDigits(c, 14, 2, (int) (ms / 60000 % 60));
+        c[16] = ':';
+        putDigits(c, 17, 2, (int) (ms / 1000 % 60));
+        c[19] = '.';
+        putDigits(c, 20, 3, (int) (ms % 1000));
+        return new String(c);
+    }
+
+    /** Reads 'len' decimal digits of a String starting at 'off' */
+    private static int digits(String s, int off, int len) {
+        int v = 0;
+        for(int x = off; x < off + len; x++) {
+            char ch = s.charAt(x);
+            if(ch < '0' || ch > '9') {
+                throw new IllegalArgumentException("not a date: " + s);
+            }
+            v = v * 10 + (ch - '0');
+        }
+        return v;
+    }
+
+    /** Writes 'v' as 'len' zero-padded decimal digits into 'c' starting at 'off' */
+    private static void putDigits(char[] c, int off, int len, int v) {
+        for(int x = off + len - 1; x >= off; x--) {
+            c[x] = (char) ('0' + v % 10);
+            v /= 10;
+        }
+    }
+
+    /** Writes a long into a buffer (big-endian)
+     * @param buf The buffer to write to
+     * @param off The offset to start writing at
+     * @param v The value to write
+     */
+    public static void putLong(byte[] buf, int off, long v) {
+        for(int x = 7; x >= 0; x--) {
+            buf[off + x] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    /** Writes a long as ASCII decimal digits into a buffer (same characters as Long.toString)
+     * @param buf The buffer to write to (at least 20 bytes)
+     * @param v The value to write
+     * @return Returns the number of bytes written
+     */
+    public static int putDecimal(byte[] buf, long v) {
+        if(v < 0) {
+            byte[] digits = Long.toString(v).getBytes();
+            System.arraycopy(digits, 0, buf, 0, digits.length);
+            return digits.length;
+        }
+
+        int len = 1;
+        for(long x = v; x >= 10; x /= 10) {
+            len++;
+        }
+        for(int x = len - 1; x >= 0; x--) {
+            buf[x] = (byte) ('0' + (v % 10));
+            v /= 10;
+        }
+        return len;
+    }
+
+    /** Writes a 64 character lowercase hex hash into a buffer as 32 raw bytes
+     * @param buf The buffer to write to
+     * @param off The offset to start writing at
+     * @param hex The hash we want to write
+     * @param none The placeholder value that stands for 'no hash' (written as zeros)
+     */
+    private static void putHash(byte[] buf, int off, String hex, String none) {
+        if(none != null && hex.equals(none)) {
+            for(int x = 0; x < HASH_SIZE; x++) {
+                buf[off + x] = 0;
+            }
+            return;
+        }
+
+        if(hex.length() != HASH_SIZE * 2) {
+            throw new IllegalArgumentException("not a hash: " + hex);
+        }
+        for(int x = 0; x < HASH_SIZE; x++) {
+            buf[off + x] = (byte) ((hexDigit(hex.charAt(x * 2)) << 4) | hexDigit(hex.charAt(x * 2 + 1)));
+        }
+    }
+
+    private static int hexDigit(char c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if(c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        throw new IllegalArgumentException("not a hex character: " + c);
+    }
+
+    /** The SHA256 digest and reusable buffers of a single thread.
+     *  The constant part of a preimage (everything before the nonce) is compressed once into a midstate, each attempt
+     *  then runs the SHA256 compression over a copy of it for the nonce-bearing tail only, without allocating */
+    public static class hashContext {
+        private static final int[] IV = {
+                0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19 };
+        private static final int[] K = {
+                0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+                0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+                0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+                0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+                0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+                0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+                0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+                0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2 };
+
+        private final MessageDigest md;
+        private final midstate blockPrefix = new midstate();
+        private final midstate txPrefix = new midstate();
+        private final byte[] header = new byte[HEADER_SIZE];
+        private final byte[] txTail = new byte[21];
+        private final int[] state = new int[8];
+        private final int[] w = new int[64];
+        private final byte[] out = new byte[HASH_SIZE];
+
+        public hashContext() {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch(NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException("HASHING ERROR: " + nsae);
+            }
+        }
+
+        /** Encodes the header of the block and absorbs everything before the nonce into the block midstate */
+        public void loadHeader(Block b) {
+            writeHeader(b, header);
+            load(blockPrefix, header, NONCE_OFFSET);
+        }
+
+        /** Hashes the loaded header with the given nonce
+         * @param nonce The nonce value to try
+         * @return Returns the digest (the buffer is reused by the next call on this thread)
+         */
+        public byte[] digest(long nonce) {
+            putLong(header, NONCE_OFFSET, nonce);
+            return finish(blockPrefix, header, NONCE_OFFSET, HEADER_SIZE - NONCE_OFFSET);
+        }
+
+        /** Absorbs the part of the transaction preimage that comes before the nonce into the transaction midstate */
+        public void loadTransaction(Transaction tx) {
+            byte[] prefix = tx.preimagePrefix().getBytes();
+            load(txPrefix, prefix, prefix.length);
+        }
+
+        /** Hashes the loaded transaction with the given nonce
+         * @param nonce The nonce value to try
+         * @return Returns the digest (the buffer is reused by the next call on this thread)
+         */
+        public byte[] digestTransaction(long nonce) {
+            int len = putDecimal(txTail, nonce);
+            txTail[len++] = '}';
+            return finish(txPrefix, txTail, 0, len);
+        }
+
+        /** Hashes some data in one go
+         * @param data The bytes to hash
+         * @param dst The buffer the digest is written to
+         * @param off The offset in 'dst' to write the 32 byte digest at
+         */
+        public void digest(byte[] data, byte[] dst, int off) {
+            md.update(data);
+            finish(md, dst, off);
+        }
+
+        /** Hashes the raw concatenation of two 32 byte nodes of a merkle level
+         * @param src The level the nodes are in
+         * @param left The offset of the left node
+         * @param right The offset of the right node
+         * @param dst The buffer the parent digest is written to
+         * @param off The offset in 'dst' to write the 32 byte digest at
+         */
+        public void digestNodes(byte[] src, int left, int right, byte[] dst, int off) {
+            md.update(src, left, HASH_SIZE);
+            md.update(src, right, HASH_SIZE);
+            finish(md, dst, off);
+        }
+
+        /** Compresses the full 64 byte blocks of a prefix into a midstate and keeps the bytes after them */
+        private void load(midstate m, byte[] prefix, int len) {
+            System.arraycopy(IV, 0, m.h, 0, 8);
+            int full = len - len % 64;
+            for(int off = 0; off < full; off += 64) {
+                compress(m.h, prefix, off);
+            }
+            System.arraycopy(prefix, full, m.buf, 0, len - full);
+            m.rest = len - full;
+            m.length = len;
+        }
+
+        /** Hashes a midstate followed by a tail: the rest of the prefix, the tail and the padding make one or two blocks */
+        private byte[] finish(midstate m, byte[] tail, int off, int len) {
+            byte[] buf = m.buf;
+            int end = m.rest + len;
+            System.arraycopy(tail, off, buf, m.rest, len);
+
+            int blocks = (end + 9 <= 64) ? 64 : 128;
+            buf[end] = (byte) 0x80;
+            for(int x = end + 1; x < blocks - 8; x++) {
+                buf[x] = 0;
+            }
+            putLong(buf, blocks - 8, (m.length + len) * 8);
+
+            System.arraycopy(m.h, 0, state, 0, 8);
+            for(int x = 0; x < blocks; x += 64) {
+                compress(state, buf, x);
+            }
+            for(int x = 0; x < 8; x++) {
+                int v = state[x];
+                out[4 * x] = (byte) (v >>> 24);
+                out[4 * x + 1] = (byte) (v >>> 16);
+                out[4 * x + 2] = (byte) (v >>> 8);
+                out[4 * x + 3] = (byte) v;
+            }
+            return out;
+        }
+
+        /** The SHA256 compression function over one 64 byte block (FIPS 180-4, 6.2.2) */
+        private void compress(int[] h, byte[] block, int off) {
+            for(int t = 0; t < 16; t++) {
+                int i = off + 4 * t;
+                w[t] = (block[i] << 24) | ((block[i + 1] & 0xFF) << 16) | ((block[i + 2] & 0xFF) << 8) | (block[i + 3] & 0xFF);
+            }
+            for(int t = 16; t < 64; t++) {
+                int s0 = Integer.rotateRight(w[t - 15], 7) ^ Integer.rotateRight(w[t - 15], 18) ^ (w[t - 15] >>> 3);
+                int s1 = Integer.rotateRight(w[t - 2], 17) ^ Integer.rotateRight(w[t - 2], 19) ^ (w[t - 2] >>> 10);
+                w[t] = w[t - 16] + s0 + w[t - 7] + s1;
+            }
+
+            int a = h[0], b = h[1], c = h[2], d = h[3], e = h[4], f = h[5], g = h[6], k = h[7];
+            for(int t = 0; t < 64; t++) {
+                int t1 = k + (Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25))
+                        + ((e & f) ^ (~e & g)) + K[t] + w[t];
+                int t2 = (Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22))
+                        + ((a & b) ^ (a & c) ^ (b & c));
+                k = g;
+                g = f;
+                f = e;
+                e = d + t1;
+                d = c;
+                c = b;
+                b = a;
+                a = t1 + t2;
+            }
+            h[0] += a;
+            h[1] += b;
+            h[2] += c;
+            h[3] += d;
+            h[4] += e;
+            h[5] += f;
+            h[6] += g;
+            h[7] += k;
+        }
+
+        private static void finish(MessageDigest d, byte[] dst, int off) {
+            try {
+                d.digest(dst, off, HASH_SIZE);
+            } catch(DigestException de) {
+                throw new IllegalStateException("HASHING ERROR: " + de);
+            }
+        }
+    }
+
+    /** SHA256 state after the full 64 byte blocks of a fixed prefix, and the prefix bytes after them */
+    private static class midstate {
+        final int[] h = new int[8];
+        final byte[] buf = new byte[128];   // the rest of the prefix, then the tail and the padding
+        int rest;                            // number of prefix bytes in 'buf'
+        long length;                         // length of the prefix in bytes
+    }
+}
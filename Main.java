@@ -1,5 +1,3 @@
-import org.apache.commons.lang3.SerializationUtils;
-
 import java.io.*;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -14,6 +12,7 @@ public class Main extends Thread {
     static Network network = new Network();
     static Miner miner = new Miner();
     static Encryption encryption = new Encryption();
+    static MiningService miningService = null;
 
     private volatile boolean active = true;
     String cmd = "";
@@ -30,9 +29,15 @@ public class Main extends Thread {
     public void run () {
         System.out.println(" *** VALID COMMANDS ***");
         System.out.println("'mine'          -> mines a block and sends it off to other peers");
+        System.out.println("'mine-start'    -> keeps mining blocks in the background");
+        System.out.println("'mine-stop'     -> stops background mining");
         System.out.println("'my-cohort'     -> calculates cohort ID for user");
         System.out.println("'all-cohorts'   -> prints all currently valid cohorts in network");
+        System.out.println("'check-tx <h>'  -> asks peers to prove tx with hash <h> is in the chain");
         System.out.println("'test'          -> generates and mines 10 blocks with 1000 random cohorts");
+        System.out.println("'partition'     -> prints the k-anonymous cohort prefixes and their sizes (and asks peers for theirs)");
+        System.out.println("'cache-stats'   -> prints hit/miss counters of the block and header caches");
+        System.out.println("'prune'         -> deletes block bodies whose cohorts have all expired (headers are kept)");
         System.out.println("'settings'      -> change settings of model (NOT SAVED AFTER EXIT)");
         System.out.println("'exit'          -> shuts down");
 
@@ -49,10 +54,13 @@ public class Main extends Thread {
                     miner.fetchTransactions(network.getTxFile(), network);
                     Block unminedBlock = miner.createBlock(network.getChain());
                     Block minedBlock = miner.mineBlock(unminedBlock);
+                    if(minedBlock == null) {
+                        break;
+                    }
 
                     try {
                         new PrintWriter(network.getTxFile()).close();
-                        miner.txs = new TreeSet<Transaction>();
+                        miner.removeTransactions(minedBlock.getTransactions());
                     } catch (Exception er) {
                         System.out.println("FAIL DELETING TX FILE CONTENTS: " + er);
                     }
@@ -62,6 +70,17 @@ public class Main extends Thread {
                     network.announce(minedBlock);
                 }
             }
+            else if(cmd.equals("mine-start")) {
+                if(miningService == null) {
+                    miningService = new MiningService(network);
+                }
+                miningService.start();
+            }
+            else if(cmd.equals("mine-stop")) {
+                if(miningService != null) {
+                    miningService.stop();
+                }
+            }
             else if(cmd.equals("my-cohort")) {
 //                System.out.println("getting cohort ID..");
 //                String s = BlockLSH.getCohortID(network.getChain().getCohorts(), BlockLSH.getCohortHash());
@@ -81,36 +100,64 @@ public class Main extends Thread {
 
                 System.out.println("\n** all cohorts printed **");
             }
+            else if(cmd.startsWith("check-tx ")) {
+                String txHash = cmd.substring(9).trim();
+                System.out.println("asking peers for merkle proof of tx: " + txHash);
+                network.requestProof(null, txHash);
+            }
+            else if(cmd.equals("prune")) {
+                System.out.println("pruning expired block bodies..");
+                int count = network.getChain().prune();
+                System.out.println(count + " block files/bodies pruned");
+            }
+            else if(cmd.equals("partition")) {
+                System.out.println("partitioning all valid cohorts..");
+                network.getChain().getCohorts();
+                TreeMap<String, Integer> table = BlockLSH.getPartition(network.getChain().getCohortWindow());
+                System.out.print(BlockLSH.partitionToString(table));
+                System.out.println("\n** " + table.size() + " prefixes **");
+                network.requestPartition();
+            }
+            else if(cmd.equals("cache-stats")) {
+                System.out.println(network.getChain().getHeaderCache());
+                System.out.println(network.getChain().getBlockCache());
+            }
             else if(cmd.equals("exit")) {
                 System.out.println("exiting application");
+                if(miningService != null) {
+                    miningService.stop();
+                }
                 setActive(false);
                 System.exit(0);
             }
             else if(cmd.equals("test")) {
                 for(int x2=0;x2<10;x2++) {
-                    TreeSet<Transaction> txs = new TreeSet<>();
+                    ArrayList<Transaction> txs = new ArrayList<>();
                     for (int y = 0; y < 1000; y++) {
                     
                         // generate a random cohort hash of 50 bits
                         String h = "";
                         for (int x = 0; x < 50; x++) {
-                            Random rand = new Random();
-                            int r = rand.nextInt() % 2;
                             h += (int) Math.round(Math.random());
                         }
-                        Transaction tx = new Transaction(h);
-                        BlockLSH.sendTransaction(network, tx);
+                        txs.add(new Transaction(h));
                     }
 
+                    // mine all 1000 txs in parallel, each is sent off as soon as it is mined
+                    BlockLSH.sendTransactions(network, txs);
+
                     System.out.println("mining a new block..");
 
                     miner.fetchTransactions(network.getTxFile(), network);
                     Block unminedBlock = miner.createBlock(network.getChain());
                     Block minedBlock = miner.mineBlock(unminedBlock);
+                    if(minedBlock == null) {
+                        break;
+                    }
 
                     try {
                         new PrintWriter(network.getTxFile()).close();
-                        miner.txs = new TreeSet<Transaction>();
+                        miner.removeTransactions(minedBlock.getTransactions());
                     } catch (Exception er) {
                         System.out.println("FAIL DELETING TX FILE CONTENTS: " + er);
                     }
@@ -128,12 +175,24 @@ public class Main extends Thread {
                 System.out.print("\n(current=" + Miner.txDif + ") Min. difficulty level of valid transaction object: ");
                 Miner.txDif = Integer.parseInt(sc.nextLine());
 
+                System.out.print("\n(current=" + Miner.minerThreads + ") Number of threads used to mine a block: ");
+                Miner.minerThreads = Integer.parseInt(sc.nextLine());
+
                 System.out.print("\n(current=" + Blockchain.expiredTime + ") Number of seconds before a mined cohort hash expires: ");
                 Blockchain.expiredTime = Long.parseLong(sc.nextLine());
 
                 System.out.print("\ncurrent=" + Blockchain.blockInterval +") Number of seconds between each new block: ");
                 Blockchain.blockInterval = Long.parseLong(sc.nextLine());
 
+                System.out.print("\n(current=" + Blockchain.syncWrites + ") Wait for block writes to reach the disk (true/false): ");
+                Blockchain.syncWrites = Boolean.parseBoolean(sc.nextLine());
+
+                System.out.print("\n(current=" + Blockchain.maxFileBlocks + ") Max. number of blocks in one block file: ");
+                Blockchain.maxFileBlocks = Integer.parseInt(sc.nextLine());
+
+                System.out.print("\n(current=" + Blockchain.pruneMode + ") Delete expired block bodies after each new block (true/false): ");
+                Blockchain.pruneMode = Boolean.parseBoolean(sc.nextLine());
+
                 System.out.print("\ncurrent=" + BlockLSH.hashSize + ") Number of bits of the cohort hash to send: ");
                 Blockchain.blockInterval = Long.parseLong(sc.nextLine());
 
@@ -142,9 +201,15 @@ public class Main extends Thread {
             else {
                 System.out.println("wrong input, try the following;");
                 System.out.println("'mine'          -> mines a block and sends it off to other peers");
+                System.out.println("'mine-start'    -> keeps mining blocks in the background");
+                System.out.println("'mine-stop'     -> stops background mining");
                 System.out.println("'my-cohort'     -> calculates cohort ID for user");
                 System.out.println("'all-cohorts'   -> prints all currently valid cohorts in network");
+                System.out.println("'check-tx <h>'  -> asks peers to prove tx with hash <h> is in the chain");
                 System.out.println("'test'          -> generates 1000 random cohorts, mines block");
+                System.out.println("'partition'     -> prints the k-anonymous cohort prefixes and their sizes (and asks peers for theirs)");
+                System.out.println("'cache-stats'   -> prints hit/miss counters of the block and header caches");
+                System.out.println("'prune'         -> deletes block bodies whose cohorts have all expired (headers are kept)");
                 System.out.println("'settings'      -> change settings of model (NOT SAVED AFTER EXIT)");
                 System.out.println("'exit'          -> shuts down");
             }
@@ -215,11 +280,15 @@ public class Main extends Thread {
 	// on client closure, save currently up-to-date chain metadata
         Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
             public void run() {
+                // let the block writer finish storing what it has queued
+                network.getChain().closeWriter();
+
                 System.out.println("updating chaintip data..");
                 if(network.getChain().getChainTip() != null) {
-                    network.getChain().add(network.getChain().getIndexDB(), "chaintip".getBytes(), SerializationUtils.serialize(network.getChain().getChainTip()));
+                    network.getChain().add(network.getChain().getIndexDB(), "chaintip".getBytes(), BinaryCodec.encode(network.getChain().getChainTip()));
                     System.out.println("chaintip data updated..");
                 }
+                Storage.closeAll();
             }
         }));
 
@@ -0,0 +1,163 @@
+import java.util.Arrays;
+
+/** Merkle tree of the mempool that is kept up to date as transactions are added and removed.
+ *  The nodes form the same crit-bit tree as MerkleTree (the shape only depends on the set of digests), so adding or
+ *  removing a leaf only marks the O(log n) nodes above it, and only marked nodes are rehashed the next time the root is
+ *  read. Reading an unchanged root costs nothing */
+public class MerkleAccumulator {
+    private static final int H = Hashing.HASH_SIZE;
+
+    private Object top = null;                      // a leaf digest (byte[]), an inner node or null if there are no leaves
+    private int size = 0;
+    private byte[] root = null;
+    private final byte[] pair = new byte[2 * H];
+
+    /** Adds a leaf (does nothing if it is already present)
+     * @param digest The 32 byte transaction digest
+     * @return Returns whether the leaf was added (true) or already present (false)
+     */
+    public boolean add(byte[] digest) {
+        byte[] leaf = Arrays.copyOf(digest, H);
+        if(top == null) {
+            top = leaf;
+            size = 1;
+            root = null;
+            return true;
+        }
+
+        // the leaf the new one would end up next to decides the bit the new inner node splits on
+        int bit = MerkleTree.critBit(closest(digest), 0, digest, 0);
+        if(bit < 0) {
+            return false;
+        }
+
+        // the new node goes above the first node that splits on a later bit
+        innerNode parent = null;
+        Object n = top;
+        while(n instanceof innerNode && ((innerNode) n).bit < bit) {
+            parent = (innerNode) n;
+            parent.dirty = true;
+            n = parent.child(digest);
+        }
+
+        innerNode added = (MerkleTree.bit(digest, 0, bit) == 0) ? new innerNode(bit, leaf, n) : new innerNode(bit, n, leaf);
+        replace(parent, n, added);
+        size++;
+        root = null;
+        return true;
+    }
+
+    /** Removes a leaf (does nothing if it isn't present)
+     * @param digest The 32 byte transaction digest
+     * @return Returns whether the leaf was removed (true) or not present (false)
+     */
+    public boolean remove(byte[] digest) {
+        if(top == null || !Arrays.equals(closest(digest), digest)) {
+            return false;
+        }
+
+        // the parent of the leaf is replaced by the other child, the nodes above it change
+        innerNode grandParent = null;
+        innerNode parent = null;
+        Object n = top;
+        while(n instanceof innerNode) {
+            grandParent = parent;
+            parent = (innerNode) n;
+            parent.dirty = true;
+            n = parent.child(digest);
+        }
+
+        if(parent == null) {
+            top = null;
+        }
+        else {
+            replace(grandParent, parent, (parent.left == n) ? parent.right : parent.left);
+        }
+        size--;
+        root = null;
+        return true;
+    }
+
+    /** Removes all leaves */
+    public void clear() {
+        top = null;
+        size = 0;
+        root = null;
+    }
+
+    /** Returns the number of leaves */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the current root, rehashing only the nodes that changed
+     * @return Returns the 32 byte root digest, or null if there are no leaves
+     */
+    public byte[] root() {
+        if(root != null || top == null) {
+            return root;
+        }
+        root = Arrays.copyOf(hash(top, Hashing.context()), H);
+        return root;
+    }
+
+    /** Returns the hash of a node, rehashing it (and the changed nodes below it) if it is marked */
+    private byte[] hash(Object n, Hashing.hashContext ctx) {
+        if(!(n instanceof innerNode)) {
+            return (byte[]) n;
+        }
+
+        innerNode node = (innerNode) n;
+        if(node.dirty) {
+            byte[] left = hash(node.left, ctx);
+            byte[] right = hash(node.right, ctx);
+            System.arraycopy(left, 0, pair, 0, H);
+            System.arraycopy(right, 0, pair, H, H);
+            ctx.digestNodes(pair, 0, H, node.hash, 0);
+            node.dirty = false;
+        }
+        return node.hash;
+    }
+
+    /** Returns the leaf found by following the bits of a digest down from the top (the leaf itself if it is present) */
+    private byte[] closest(byte[] digest) {
+        Object n = top;
+        while(n instanceof innerNode) {
+            n = ((innerNode) n).child(digest);
+        }
+        return (byte[]) n;
+    }
+
+    /** Puts 'to' where 'from' is, below 'parent' (or at the top) */
+    private void replace(innerNode parent, Object from, Object to) {
+        if(parent == null) {
+            top = to;
+        }
+        else if(parent.left == from) {
+            parent.left = to;
+        }
+        else {
+            parent.right = to;
+        }
+    }
+
+    /** Inner node of the tree: the bit its leaves are split on, its children and its (cached) hash */
+    private static class innerNode {
+        final int bit;
+        Object left;
+        Object right;
+        final byte[] hash = new byte[H];
+        boolean dirty = true;
+
+        innerNode(int bit, Object left, Object right) {
+            this.bit = bit;
+            this.left = left;
+            this.right = right;
+        }
+
+        /** Returns the child on the side of a digest */
+        Object child(byte[] digest) {
+            return (MerkleTree.bit(digest, 0, bit) == 0) ? left : right;
+        }
+    }
+}
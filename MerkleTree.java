@@ -0,0 +1,317 @@
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Merkle tree over raw 32 byte digests, shaped as a binary radix (crit-bit) tree over the bits of the digests.
+ *  Leaves are the transaction hashes, an inner node splits its leaves on the first bit where they differ (leaves with a 0
+ *  bit go left) and its hash is SHA256(left || right) over the raw 64 bytes, a single leaf is its own root.
+ *  The shape only depends on the set of digests, so adding or removing a leaf only changes the nodes above it
+ *  (see MerkleAccumulator), and with digests being uniformly random the tree is about log2(n) levels deep */
+public class MerkleTree {
+
+    // ######################################################################
+    // ## Minimum number of leaves in a subtree before it is split over    ##
+    // ## the fork-join pool (smaller subtrees are hashed on the caller)    ##
+    // ######################################################################
+    public static int parallelThreshold = 4096;
+
+    private static final int H = Hashing.HASH_SIZE;
+    private static final int BITS = 8 * H;
+
+    /** Hashes every transaction into one contiguous leaf array
+     * @param txs The transactions in tree order
+     * @return Returns txs.size() * 32 bytes of leaf digests
+     */
+    public static byte[] leaves(Collection<Transaction> txs) {
+        final Transaction[] list = txs.toArray(new Transaction[0]);
+        final byte[] level = new byte[list.length * H];
+
+        run(new rangeTask(0, list.length) {
+            @Override
+            void compute(int from, int to) {
+                for(int x = from; x < to; x++) {
+                    System.arraycopy(list[x].getDigest(), 0, level, x * H, H);
+                }
+            }
+        });
+        return level;
+    }
+
+    /** Calculates the root of a tree from its leaves
+     * @param leaves The leaf digests, back to back and sorted (TreeSet order)
+     * @param count The number of leaves (at least 1)
+     * @return Returns the 32 byte root digest
+     */
+    public static byte[] root(byte[] leaves, int count) {
+        byte[] root = new byte[H];
+        subtree(leaves, 0, count, root, 0);
+        return root;
+    }
+
+    /** Collects the sibling hashes on the path from a leaf up to the root
+     * @param blockHash The hash of the block the leaves are from
+     * @param txHash The hash of the transaction we want to prove
+     * @param leaves The leaf digests, back to back and sorted (TreeSet order)
+     * @param count The number of leaves (at least 1)
+     * @param index The position of the leaf we want to prove
+     * @return Returns the branch, one sibling and the bit its node splits on per level (bottom-up)
+     */
+    public static merkleProof branch(String blockHash, String txHash, byte[] leaves, int count, int index) {
+        byte[] siblings = new byte[BITS * H];
+        byte[] bits = new byte[BITS];
+        int depth = 0;
+
+        // walk down from the root, the sibling of every node on the way is the subtree on the other side of its split
+        int from = 0;
+        int to = count;
+        while(to - from > 1) {
+            int bit = critBit(leaves, from * H, leaves, (to - 1) * H);
+            int mid = split(leaves, from, to, bit);
+            if(index < mid) {
+                subtree(leaves, mid, to, siblings, depth * H);
+                to = mid;
+            }
+            else {
+                subtree(leaves, from, mid, siblings, depth * H);
+                from = mid;
+            }
+            bits[depth++] = (byte) bit;
+        }
+
+        // the proof goes bottom-up
+        byte[] up = new byte[depth * H];
+        byte[] upBits = new byte[depth];
+        for(int d = 0; d < depth; d++) {
+            System.arraycopy(siblings, (depth - 1 - d) * H, up, d * H, H);
+            upBits[d] = bits[depth - 1 - d];
+        }
+        return new merkleProof(blockHash, txHash, upBits, up);
+    }
+
+    /** Checks that a leaf is part of the tree with the given root, in O(log n) hashes
+     * @param leaf The 32 byte leaf digest
+     * @param proof The branch of the leaf
+     * @param root The 32 byte root the branch should lead to
+     * @return Returns whether the branch leads from the leaf to the root (true) or not (false)
+     */
+    public static boolean verify(byte[] leaf, merkleProof proof, byte[] root) {
+        byte[] bits = proof.getBits();
+        byte[] siblings = proof.getSiblings();
+
+        if(leaf.length != H || root.length != H || siblings.length != bits.length * H) {
+            return false;
+        }
+
+        Hashing.hashContext ctx = Hashing.context();
+        byte[] pair = new byte[2 * H];
+        byte[] node = Arrays.copyOf(leaf, H);
+
+        for(int d = 0; d < bits.length; d++) {
+            // a node splits on an earlier bit than every node below it
+            int bit = bits[d] & 0xFF;
+            if(d > 0 && bit >= (bits[d - 1] & 0xFF)) {
+                return false;
+            }
+
+            // the leaf is in the left subtree if its bit is 0
+            int self = (bit(leaf, 0, bit) == 0) ? 0 : H;
+            System.arraycopy(node, 0, pair, self, H);
+            System.arraycopy(siblings, d * H, pair, H - self, H);
+            ctx.digestNodes(pair, 0, H, node, 0);
+        }
+        return Arrays.equals(node, root);
+    }
+
+    /** Returns a bit of a digest, bit 0 being the most significant bit of its first byte (so sorted digests are sorted by bits)
+     * @param digest The array holding the digest
+     * @param off The offset of the digest in 'digest'
+     * @param bit The bit position (0 to 255)
+     * @return Returns 0 or 1
+     */
+    public static int bit(byte[] digest, int off, int bit) {
+        return (digest[off + (bit >>> 3)] >>> (7 - (bit & 7))) & 1;
+    }
+
+    /** Returns the first bit where two digests differ
+     * @param a The array holding the first digest
+     * @param aOff The offset of the first digest in 'a'
+     * @param b The array holding the second digest
+     * @param bOff The offset of the second digest in 'b'
+     * @return Returns the bit position, or -1 if the digests are equal
+     */
+    public static int critBit(byte[] a, int aOff, byte[] b, int bOff) {
+        for(int x = 0; x < H; x++) {
+            int diff = (a[aOff + x] ^ b[bOff + x]) & 0xFF;
+            if(diff != 0) {
+                return x * 8 + Integer.numberOfLeadingZeros(diff) - 24;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the first leaf of a sorted range that has a 1 at a given bit (all leaves of the range agree on the bits before it) */
+    private static int split(byte[] leaves, int from, int to, int bit) {
+        int low = from;
+        int high = to - 1;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(bit(leaves, mid * H, bit) == 0) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Hashes the subtree of the leaves [from, to) into 'dst', big subtrees are split over the fork-join pool */
+    private static void subtree(byte[] leaves, int from, int to, byte[] dst, int off) {
+        if(to - from < parallelThreshold) {
+            hashRange(leaves, from, to, dst, off, Hashing.context(), new byte[BITS * 2 * H], 0);
+        }
+        else {
+            ForkJoinPool.commonPool().invoke(new subtreeTask(leaves, from, to, dst, off));
+        }
+    }
+
+    /** Hashes the subtree of the leaves [from, to) on the calling thread
+     * @param scratch Room for the two children of every level below 'depth'
+     * @param depth The level of the subtree, its children go to scratch[depth]
+     */
+    private static void hashRange(byte[] leaves, int from, int to, byte[] dst, int off, Hashing.hashContext ctx, byte[] scratch, int depth) {
+        if(to - from == 1) {
+            System.arraycopy(leaves, from * H, dst, off, H);
+            return;
+        }
+
+        int bit = critBit(leaves, from * H, leaves, (to - 1) * H);
+        int mid = split(leaves, from, to, bit);
+        int pair = depth * 2 * H;
+        hashRange(leaves, from, mid, scratch, pair, ctx, scratch, depth + 1);
+        hashRange(leaves, mid, to, scratch, pair + H, ctx, scratch, depth + 1);
+        ctx.digestNodes(scratch, pair, pair + H, dst, off);
+    }
+
+    private static void run(rangeTask task) {
+        if(task.to - task.from < parallelThreshold) {
+            task.compute(task.from, task.to);
+        }
+        else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+    }
+
+    /** Hashes a subtree, the two halves of its split are hashed in parallel until they are below parallelThreshold */
+    private static class subtreeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] leaves;
+        private final int from;
+        private final int to;
+        private final byte[] dst;
+        private final int off;
+
+        subtreeTask(byte[] leaves, int from, int to, byte[] dst, int off) {
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+            this.dst = dst;
+            this.off = off;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from < parallelThreshold) {
+                hashRange(leaves, from, to, dst, off, Hashing.context(), new byte[BITS * 2 * H], 0);
+                return;
+            }
+            int bit = critBit(leaves, from * H, leaves, (to - 1) * H);
+            int mid = split(leaves, from, to, bit);
+            byte[] pair = new byte[2 * H];
+            invokeAll(new subtreeTask(leaves, from, mid, pair, 0), new subtreeTask(leaves, mid, to, pair, H));
+            Hashing.context().digestNodes(pair, 0, H, dst, off);
+        }
+    }
+
+    /** Merkle branch proving that a transaction is part of a block, see MerkleTree.verify() */
+    public static class merkleProof implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        private final String blockHash;
+        private final String txHash;
+        private final byte[] bits;
+        private final byte[] siblings;
+
+        public merkleProof(String blockHash, String txHash, byte[] bits, byte[] siblings) {
+            this.blockHash = blockHash;
+            this.txHash = txHash;
+            this.bits = bits;
+            this.siblings = siblings;
+        }
+
+        public String getBlockHash() {
+            return blockHash;
+        }
+
+        public String getTxHash() {
+            return txHash;
+        }
+
+        /** Returns the bit every node on the path splits on, bottom-up (one unsigned byte per level) */
+        public byte[] getBits() {
+            return bits;
+        }
+
+        public byte[] getSiblings() {
+            return siblings;
+        }
+
+        @Override
+        public String toString() {
+            return "merkleProof{" +
+                    "blockHash='" + blockHash + '\'' +
+                    ", txHash='" + txHash + '\'' +
+                    ", levels=" + bits.length +
+                    '}';
+        }
+    }
+
+    /** Splits an index range in half until it is below MerkleTree.parallelThreshold, then computes each part */
+    private static abstract class rangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int from;
+        final int to;
+
+        rangeTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /** Does the actual work for the indexes [from, to) */
+        abstract void compute(int from, int to);
+
+        @Override
+        protected void compute() {
+            if(to - from < MerkleTree.parallelThreshold) {
+                compute(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(slice(from, mid), slice(mid, to));
+        }
+
+        private rangeTask slice(int from, int to) {
+            final rangeTask owner = this;
+            return new rangeTask(from, to) {
+                @Override
+                void compute(int from, int to) {
+                    owner.compute(from, to);
+                }
+            };
+        }
+    }
+}
@@ -2,20 +2,37 @@ import java.io.*;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Miner {
-    public TreeSet<Transaction> txs = new TreeSet<Transaction>();
+    private TreeSet<Transaction> txs = new TreeSet<Transaction>();
+    private final MerkleAccumulator merkle = new MerkleAccumulator();  // merkle tree of 'txs', updated as txs come and go
     private int numTransactions = 0;
+    private TimingWheel<Transaction> expiry = null;                    // 'txs' by the time they expire (made on first use)
+    private final Map<Transaction, wheelTimer<Transaction>> timers = new HashMap<>();
+    private long wheelExpiredTime = -1;                                // expiredTime the wheel was filled with
+
+    private final TimingWheel.ExpiryListener<Transaction> expired = new TimingWheel.ExpiryListener<Transaction>() {
+        @Override
+        public void expired(Transaction tx) {
+            timers.remove(tx);
+            txs.remove(tx);
+            merkle.remove(tx.getDigest());
+        }
+    };
 
     // ##################################################
     // ## min. difficulty for valid transaction object ##
     // ##################################################
     public static int txDif = 2;
 
+    // ################################################################
+    // ## Number of worker threads used to search for a block nonce ##
+    // ################################################################
+    public static int minerThreads = Runtime.getRuntime().availableProcessors();
+
     /** Reads transactions from file and adds them to a TreeSet
      * @param f The file that contains the transactions */
     public void fetchTransactions(File f, Network n) {
@@ -26,12 +43,15 @@ public class Miner {
 
             TreeSet<Transaction> inchainTXs = n.getChain().getCohorts();
 
+            // drop txs that expired while waiting to be mined
+            evictExpired();
+
             // add tx, ensuring no duplicates
             Object obj = null;
             while((obj = ois.readObject()) != null) {
                 Transaction tx = (Transaction)obj;
                 if(!txs.contains(tx) && verifyExpiration(tx) && !inchainTXs.contains(tx))  {
-                    txs.add(tx);
+                    addTransaction(tx);
                 }
                 ois = new ObjectInputStream(fis);
             }
@@ -48,6 +68,69 @@ public class Miner {
         }
     }
 
+    /** Adds a transaction to the unconfirmed txs and its merkle tree
+     * @param tx The transaction to add
+     */
+    public void addTransaction(Transaction tx) {
+        if(txs.add(tx)) {
+            merkle.add(tx.getDigest());
+            schedule(tx);
+        }
+    }
+
+    /** Removes transactions from the unconfirmed txs and the merkle tree (e.g. once they are included in a block)
+     * @param included The transactions to remove
+     */
+    public void removeTransactions(Collection<Transaction> included) {
+        for (Transaction tx : included) {
+            if(txs.remove(tx)) {
+                merkle.remove(tx.getDigest());
+                if(expiry != null) {
+                    expiry.cancel(timers.remove(tx));
+                }
+            }
+        }
+    }
+
+    /** Removes all expired transactions from the unconfirmed txs and the merkle tree, only the txs that are due are
+     *  looked at (see TimingWheel) */
+    public void evictExpired() {
+        long now = Hashing.dateToMillis(Transaction.makeDate());
+        if(expiry == null || wheelExpiredTime != Blockchain.expiredTime) {
+            // the expiry time was changed, schedule every tx again
+            expiry = new TimingWheel<>(1000);
+            expiry.advance(now, expired);
+            wheelExpiredTime = Blockchain.expiredTime;
+            timers.clear();
+            for(Transaction tx : txs) {
+                schedule(tx);
+            }
+        }
+        expiry.advance(now, expired);
+    }
+
+    /** Puts a tx on the expiry wheel (if it is in use yet, evictExpired() fills it otherwise) */
+    private void schedule(Transaction tx) {
+        if(expiry != null) {
+            timers.put(tx, expiry.schedule(tx, Hashing.dateToMillis(tx.getDate()) + wheelExpiredTime * 1000));
+        }
+    }
+
+    /** Returns the unconfirmed txs (read only, use add/removeTransactions to change them)
+     * @return Returns the sorted unconfirmed txs
+     */
+    public SortedSet<Transaction> getTransactions() {
+        return Collections.unmodifiableSortedSet(txs);
+    }
+
+    /** Returns the merkle root of the unconfirmed txs without rebuilding the tree
+     * @return Returns the root hash of the Merkle tree (or 'empty')
+     */
+    public String getMerkleRoot() {
+        byte[] root = merkle.root();
+        return (root == null) ? "empty" : Hashing.toHex(root);
+    }
+
     /** Checks whether a transaction object has expired or not
      * @param tx The transaction object to validate
      * @return Returns true if tx is still valid (not expired), or false, if expired
@@ -55,11 +138,7 @@ public class Miner {
     public static boolean verifyExpiration(Transaction tx) {
         boolean result = false;
         try {
-            SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-            Date currentDate = sdf.parse(Transaction.makeDate());
-
-            Date msgDate = sdf.parse(tx.getDate());
-            long diffTime = (currentDate.getTime() - msgDate.getTime()) / 1000;
+            long diffTime = (Hashing.dateToMillis(Transaction.makeDate()) - Hashing.dateToMillis(tx.getDate())) / 1000;
 
             if (diffTime < Blockchain.expiredTime) {
                 result = true;
@@ -71,48 +150,26 @@ public class Miner {
         return result;
     }
 
-    /** Hashes a block and returns its hash as String (SHA256)
+    /** Hashes the binary header of a block and returns its hash as String (SHA256)
      * @param b The block object we want to hash
      * @return Returns the hash of the block object as a String
      */
     public String hash(Block b) {
-        String hashtext;
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] bytes = md.digest(b.toString().getBytes());
-            BigInteger numb = new BigInteger(1, bytes);
-            hashtext = numb.toString(16);
-            while (hashtext.length() < 64) {
-                hashtext = "0" + hashtext;
-            }
-            return hashtext;
+            return Hashing.hash(b);
         }
-        catch(NoSuchAlgorithmException nsae) {
-            System.out.println("HASHING ERROR: " + nsae);
+        catch(RuntimeException re) {
+            System.out.println("HASHING ERROR: " + re);
             return null;
         }
     }
 
-    /** Hashes a block header and returns its hash as String (SHA256)
+    /** Hashes a block header and returns its hash as String (SHA256), this is the same value as the hash of its block
      * @param header The block header object we want to hash
      * @return Returns the hash of the block header object as a String
      */
     public String hash(indexBlock header) {
-        String hashtext;
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] bytes = md.digest(header.toString().getBytes());
-            BigInteger numb = new BigInteger(1, bytes);
-            hashtext = numb.toString(16);
-            while (hashtext.length() < 64) {
-                hashtext = "0" + hashtext;
-            }
-            return hashtext;
-        }
-        catch(NoSuchAlgorithmException nsae) {
-            System.out.println("HASHING ERROR: " + nsae);
-            return null;
-        }
+        return hash(new Block(header.getIndex(), header.getDate(), header.getPrevHash(), header.getNonce(), header.getDifficultyLevel(), header.getMerkleRoot(), header.getTotalDifficulty()));
     }
 
     /** Hashes a String and returns its hash as String (SHA256)
@@ -137,26 +194,12 @@ public class Miner {
         }
     }
 
-    /** Hashes a block header and returns its hash as String (SHA256)
-     * @param msg The block header object we want to hash
-     * @return Returns the hash of the block header object as a String
+    /** Hashes a transaction and returns its hash as String (SHA256)
+     * @param msg The transaction object we want to hash
+     * @return Returns the hash of the transaction object as a String
      */
     public String hash(Transaction msg) {
-        String hashtext;
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            byte[] bytes = md.digest(msg.toString().getBytes());
-            BigInteger numb = new BigInteger(1, bytes);
-            hashtext = numb.toString(16);
-            while (hashtext.length() < 64) {
-                hashtext = "0" + hashtext;
-            }
-            return hashtext;
-        }
-        catch(NoSuchAlgorithmException nsae) {
-            System.out.println("HASHING ERROR: " + nsae);
-            return null;
-        }
+        return Hashing.hash(msg);
     }
 
     /** Creates a block with the current uncomfirmed txs
@@ -164,9 +207,21 @@ public class Miner {
      * @return Returns the created (**NOT MINED**) block object
      */
     public Block createBlock(Blockchain chain) {
+        // the merkle root is kept up to date as txs are added/removed, the block gets its own copy of the txs
+        return createBlock(chain, new TreeSet<>(txs), getMerkleRoot());
+    }
+
+    /** Creates a block with the given uncomfirmed txs
+     * @param chain The blockchain class object from which we gather information
+     * @param txs The transactions to include in the block
+     * @return Returns the created (**NOT MINED**) block object
+     */
+    public Block createBlock(Blockchain chain, TreeSet<Transaction> txs) {
         // Generate merkleroot of all transactions
-        String mr = genMerkleRoot(txs);
+        return createBlock(chain, txs, genMerkleRoot(txs));
+    }
 
+    private Block createBlock(Blockchain chain, TreeSet<Transaction> txs, String mr) {
         // Get current difficulty level
         long difficulty = chain.getDifficulty();
 
@@ -178,40 +233,82 @@ public class Miner {
         return block;
     }
 
+    /** Calculates how many 0's a hash should start with based on the difficulty level
+     * formula: (2^256) / (2^ (256-(4*difficultyLevel))) -> avg. number of hashes required..
+     * @param difficultyLevel The difficulty level of the block
+     * @return Returns the number of leading 0's required (minimum is 1)
+     */
+    public static int getTargetLevel(long difficultyLevel) {
+        int lvl = (int) ((Math.log10(difficultyLevel) / Math.log10(2) ) / 4);
+        if(lvl < 1) {
+            lvl = 1;
+        }
+        return lvl;
+    }
+
     /** Mines the block until the difficulty level is satisfied, then returns the block
+     *  (the nonce space is split between 'minerThreads' workers, worker w tries nonces w, w+n, w+2n, ..)
      * @param b The unmined block object
-     * @return Returns a successfully mined block
+     * @return Returns a successfully mined block, or null if mining was interrupted
      */
     public Block mineBlock(Block b) {
-        // formula: (2^256) / (2^ (256-(4*difficultyLevel))) -> avg. number of hashes required..
-        long hashRate = b.getDifficultyLevel();
-
-        // Calculate how many 0's the hash should start with based on the current difficulty level
-        final int lvl;
+        return mineBlock(b, new AtomicBoolean(false));
+    }
 
-        // Minimum 0's is set at 1, else calculate what it should be
-        if( ((int) ((Math.log10(hashRate) / Math.log10(2) ) / 4)) < 1) {
-            lvl = 1;
-        }
-        else {
-            lvl = (int) ((Math.log10(hashRate) / Math.log10(2) ) / 4);
-        }
+    /** Mines the block until the difficulty level is satisfied or the mining is cancelled
+     * @param b The unmined block object
+     * @param cancel Flag that stops all workers once it is set to true
+     * @return Returns a successfully mined block, or null if mining was cancelled/interrupted
+     */
+    public Block mineBlock(final Block b, final AtomicBoolean cancel) {
+        final int lvl = getTargetLevel(b.getDifficultyLevel());
+        final String target = new String(new char[lvl]).replace('\0', '0');
+        final int workers = Math.max(1, minerThreads);
+        final long startNonce = b.nonce;
 
-        String target = new String(new char[lvl]).replace('\0', '0');
         System.out.println("target: " + target);
-        System.out.println("starting to mine..");
-
-        // Increase nonce value until the proof-of-work challenge is solved..
-        while (!hash(b).substring(0, lvl).equals(target)) {
-            String data = ("\n nonce: " + b.nonce + ",         hash: " + hash(b));
-
-            // Append hash info
-            System.out.println(data);
-
-            b.nonce++;
+        System.out.println("starting to mine on " + workers + " threads..");
+
+        ArrayList<Callable<Long>> tasks = new ArrayList<>();
+        for(int w = 0; w < workers; w++) {
+            final long offset = w;
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    // Each worker encodes the header into its own buffer, only the nonce bytes change afterwards
+                    Hashing.hashContext ctx = Hashing.context();
+                    ctx.loadHeader(b);
+
+                    // Increase nonce value until the proof-of-work challenge is solved, or another worker solved it first
+                    long nonce = startNonce + offset;
+                    while(!cancel.get() && !Thread.currentThread().isInterrupted()) {
+                        if(Hashing.leadingZeroNibbles(ctx.digest(nonce)) >= lvl) {
+                            return nonce;
+                        }
+                        nonce += workers;
+                    }
+                    throw new InterruptedException("nonce search cancelled");
+                }
+            });
         }
 
-        return b;
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            // Returns as soon as one worker finds a valid nonce, the remaining workers are then interrupted
+            b.nonce = pool.invokeAny(tasks);
+            System.out.println("mined block: " + hash(b));
+            return b;
+        } catch(InterruptedException | ExecutionException e) {
+            if(cancel.get()) {
+                System.out.println("mining cancelled..");
+            }
+            else {
+                System.out.println("MINING ERROR: " + e);
+            }
+            return null;
+        } finally {
+            pool.shutdownNow();
+        }
     }
 
     /** Checks if the block has been successfully mined
@@ -219,19 +316,14 @@ public class Miner {
      * @return Returns whether the block is successfully mined (true) or not (false)
      */
     public boolean verifyMined(Block b) {
-        // formula: (2^256) / (2^ (256-(4*difficultyLevel))) -> avg. number of hashes required..
-        long hashRate = b.getDifficultyLevel();
-
-        // Calculate how many 0's the hash should start with based on the current difficulty level (minimum should be 1)
-        int lvl = (int) ((Math.log10(hashRate) / Math.log10(2) ) / 4);
-        if(lvl < 1) {
-            lvl = 1;
+        try {
+            // Check the hash starts with as many 0's as the difficulty level requires (minimum should be 1)
+            return Hashing.leadingZeros(b) >= getTargetLevel(b.getDifficultyLevel());
+        }
+        catch(RuntimeException re) {
+            System.out.println("VERIFY MINED ERROR: " + re);
+            return false;
         }
-
-        // Check if block is mined
-        String target = new String(new char[lvl]).replace('\0', '0');
-        if(hash(b).substring(0,lvl).equals(target)) return true;
-        else return false;
     }
 
     /** Checks if the block header has been successfully mined -> creates Block object from header data
@@ -242,19 +334,7 @@ public class Miner {
         // Create block object from header data
         Block b = new Block(header.getIndex(), header.getDate(), header.getPrevHash(), header.getNonce(), header.getDifficultyLevel(), header.getMerkleRoot(), header.getTotalDifficulty());
 
-        // formula: (2^256) / (2^ (256-(4*difficultyLevel))) -> avg. number of hashes required..
-        long hashRate = b.getDifficultyLevel();
-
-        // Calculate how many 0's the hash should start with based on the current difficulty level (minimum should be 1)
-        int lvl = (int) ((Math.log10(hashRate) / Math.log10(2) ) / 4);
-        if(lvl < 1) {
-            lvl = 1;
-        }
-
-        // Check if block is mined
-        String target = new String(new char[lvl]).replace('\0', '0');
-        if(hash(b).substring(0,lvl).equals(target)) return true;
-        else return false;
+        return verifyMined(b);
     }
 
     /** Checks if the transaction has been successfully mined -> creates Block object from header data
@@ -262,63 +342,43 @@ public class Miner {
      * @return Returns whether the transaction is successfully mined (true) or not (false)
      */
     public boolean verifyMined(Transaction tx) {
-        String target = new String(new char[txDif]).replace('\0', '0');
-        if(hash(tx).substring(0,txDif).equals(target)) return true;
-        else return false;
-    }
-
-    /** Hashes the Merkle tree children to make parents
-     * @param children The children hashes
-     * @return Returns the hashed children pairs
-     */
-    private LinkedList<String> genParentHash(LinkedList<String> children) {
-        LinkedList<String> parents = new LinkedList<>();
-
-        // If number of children is odd, add the last child again to make it even
-        if( (children.size() != 1) && (children.size() % 2 != 0) ) {
-            children.add(children.getLast());
-        }
-
-        // Hash the children pairs to make a new parent, and add it to a new LinkedList
-        for(int x = 0; x < children.size(); x=x+2) {
-            String left = children.get(x);
-            String right = children.get(x+1);
-
-            parents.add(hash(left+right));
-        }
-
-        return parents;
+        return Hashing.leadingZeros(tx) >= txDif;
     }
 
-    /** Generates MerkleRoot of all transactions
+    /** Generates MerkleRoot of all transactions (see MerkleTree for the tree layout)
      * @param txs All transactions
      * @return Returns the root hash of the Merkle tree
      */
     public String genMerkleRoot(TreeSet<Transaction> txs) {
-        LinkedList<String> hashes = new LinkedList<>();
-
         // If no messages are present, we have nothing to work with
         if(txs.isEmpty()) {
             return "empty";
         }
 
-        // If number of messages is odd, add the last message again to make it even
-        if(txs.size() % 2 != 0) {
-            txs.add(txs.last());
-        }
+        // Hash each message object, then hash the children pairs until only one hash (the root) remains
+        return Hashing.toHex(MerkleTree.root(MerkleTree.leaves(txs), txs.size()));
+    }
 
-        // Hash each message object and add it to a LinkedList
-        for (Transaction message : txs) {
-            hashes.add(hash(message.toString()));
+    /** Builds the Merkle branch of a transaction inside a block
+     * @param blockHash The hash of the block
+     * @param b The block object that should contain the transaction
+     * @param txHash The hash of the transaction we want to prove
+     * @return Returns the proof, or null if the transaction is not in the block
+     */
+    public MerkleTree.merkleProof getMerkleProof(String blockHash, Block b, String txHash) {
+        TreeSet<Transaction> blockTxs = b.getTransactions();
+        if(blockTxs == null || blockTxs.isEmpty()) {
+            return null;
         }
 
-        // Hash the children pairs until only one hash (the root) remains
-        while(hashes.size() != 1) {
-            hashes = genParentHash(hashes);
+        // find the position of the transaction in the tree
+        int index = 0;
+        for (Transaction tx : blockTxs) {
+            if(hash(tx).equals(txHash)) {
+                return MerkleTree.branch(blockHash, txHash, MerkleTree.leaves(blockTxs), blockTxs.size(), index);
+            }
+            index++;
         }
-
-        return hashes.get(0);
+        return null;
     }
-
-    // TODO; ? MerkleTree verification
 }
@@ -0,0 +1,270 @@
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Mines blocks on a background thread until stopped.
+ *  Mining is cancelled as soon as the chaintip moves to a block we are not building on, and block templates are
+ *  prepared on a separate template thread so a restart does not have to wait for the mempool/merkle root work */
+public class MiningService {
+
+    // ###########################################################################
+    // ## Seconds between refreshing the follow-up block template while mining ##
+    // ###########################################################################
+    public static long templateRefresh = 5;
+
+    private final Network network;
+    private final Miner miner = new Miner();    // mempool of the service, only touched on the template thread
+
+    private ScheduledExecutorService templateThread;
+    private Thread worker;
+    private volatile boolean running = false;
+
+    private volatile AtomicBoolean cancel = new AtomicBoolean(false);  // cancels the template currently being mined
+    private volatile Block mining = null;                               // template currently being mined
+    private volatile Future<Block> tipTemplate = null;                  // template built for the latest chaintip
+    private volatile followUpTemplate followUp = null;                  // next template, assuming the block being mined wins
+    private Block lastMined = null;                                     // last block we mined (worker thread only)
+    private final TreeSet<Transaction> followUpTxs = new TreeSet<>();   // txs of the last follow-up template (template thread only)
+    private final MerkleAccumulator followUpMerkle = new MerkleAccumulator();  // merkle tree of 'followUpTxs'
+
+    private final Runnable tipListener = new Runnable() {
+        @Override
+        public void run() {
+            onTipChanged();
+        }
+    };
+
+    public MiningService(Network network) {
+        this.network = network;
+    }
+
+    /** Starts mining on a background thread (does nothing if already running) */
+    public synchronized void start() {
+        if(running) {
+            return;
+        }
+        running = true;
+
+        templateThread = Executors.newSingleThreadScheduledExecutor();
+        tipTemplate = templateThread.submit(buildTemplate());
+        network.getChain().addTipListener(tipListener);
+
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mine();
+            }
+        }, "mining-service");
+        worker.start();
+        System.out.println("mining service started..");
+    }
+
+    /** Stops mining, the block currently being mined is abandoned */
+    public synchronized void stop() {
+        if(!running) {
+            return;
+        }
+        running = false;
+
+        network.getChain().removeTipListener(tipListener);
+        cancel.set(true);
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        templateThread.shutdownNow();
+        System.out.println("mining service stopped..");
+    }
+
+    /** Returns whether the service is currently mining */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Mining loop: take the next template, mine it (restarting on tip changes), store and announce it */
+    private void mine() {
+        Blockchain chain = network.getChain();
+
+        while(running) {
+            try {
+                Block template = nextTemplate(chain);
+
+                // publish the new flag before the template so the tip listener never cancels an old flag for a new template
+                AtomicBoolean flag = new AtomicBoolean(false);
+                cancel = flag;
+                mining = template;
+
+                // the tip may have moved while the template was built
+                if(!chain.getCurrentHash().equals(template.getPreviousHash())) {
+                    continue;
+                }
+
+                // keep preparing the follow-up template while this one is being mined
+                ScheduledFuture<?> refresh = templateThread.scheduleWithFixedDelay(prepareFollowUp(template), 0, templateRefresh, TimeUnit.SECONDS);
+                Block mined = miner.mineBlock(template, flag);
+                refresh.cancel(false);
+                mining = null;
+
+                if(mined == null) {
+                    System.out.println("chaintip changed, restarting mining..");
+                    continue;
+                }
+
+                System.out.println("txs in block: " + mined.getTransactions().size());
+                String hash = miner.hash(mined);
+                lastMined = mined;
+
+                // queued ahead of the template the tip change triggers, so the new template won't contain these txs again
+                templateThread.submit(removeIncluded(mined));
+                chain.storeBlock(hash, mined);
+                network.announce(mined);
+            }
+            catch(InterruptedException ie) {
+                break;
+            }
+            catch(Exception e) {
+                System.out.println("MINING SERVICE ERROR: " + e);
+            }
+        }
+    }
+
+    /** Returns the template to mine next: the prepared follow-up if our last block is the tip, else the tip template */
+    private Block nextTemplate(Blockchain chain) throws InterruptedException, ExecutionException {
+        followUpTemplate f = followUp;
+        String tip = chain.getCurrentHash();
+
+        if(f != null && f.getBase() == lastMined && tip.equals(miner.hash(lastMined))) {
+            followUp = null;
+
+            // Only the header fields that depend on the mined block are left to fill in
+            Block prepared = f.getTemplate();
+            Block template = new Block(prepared.getMerkleRoot(), chain.getCurrentIndex()+1, tip, prepared.getDifficultyLevel(), chain.getCurrentDifficultyTotal()+prepared.getDifficultyLevel());
+            template.setTransactions(prepared.getTransactions());
+            return template;
+        }
+
+        Future<Block> t = tipTemplate;
+        Block template = (t == null) ? null : t.get();
+        if(template == null || !tip.equals(template.getPreviousHash())) {
+            template = templateThread.submit(buildTemplate()).get();
+        }
+        return template;
+    }
+
+    /** Called by the chain whenever the chaintip moves */
+    private void onTipChanged() {
+        Block m = mining;
+        if(m != null && !network.getChain().getCurrentHash().equals(m.getPreviousHash())) {
+            cancel.set(true);
+        }
+
+        // start building the template for the new tip straight away
+        if(running) {
+            try {
+                tipTemplate = templateThread.submit(buildTemplate());
+            } catch(RejectedExecutionException ree) {
+                // service is stopping
+            }
+        }
+    }
+
+    /** Builds a template on top of the current chaintip with all pending txs */
+    private Callable<Block> buildTemplate() {
+        return new Callable<Block>() {
+            @Override
+            public Block call() {
+                miner.fetchTransactions(network.getTxFile(), network);
+                return miner.createBlock(network.getChain());
+            }
+        };
+    }
+
+    /** Prepares the template that follows 'current' (txs not in it, merkle root and difficulty), the previous hash is filled in once 'current' is mined */
+    private Runnable prepareFollowUp(final Block current) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    miner.fetchTransactions(network.getTxFile(), network);
+                    TreeSet<Transaction> pending = new TreeSet<>(miner.getTransactions());
+                    pending.removeAll(current.getTransactions());
+
+                    // 'current' becomes the tip once mined, so the difficulty follows from its date and the date of its parent
+                    long difficulty = 1;
+                    indexBlock parent = network.getChain().getChainTip();
+                    if(parent != null && current.getPreviousHash().equals(network.getChain().getCurrentHash())) {
+                        difficulty = Blockchain.getDifficulty(current.getDate(), current.getDifficultyLevel(), parent.getDate());
+                    }
+
+                    Block next = new Block(followUpRoot(pending), current.getIndex()+1, "GENESIS", difficulty, current.getTotalDifficulty()+difficulty);
+                    next.setTransactions(pending);
+                    followUp = new followUpTemplate(current, next);
+                } catch(Exception e) {
+                    System.out.println("FOLLOW-UP TEMPLATE ERROR: " + e);
+                }
+            }
+        };
+    }
+
+    /** Brings the merkle tree of the follow-up template in line with the pending txs, only the txs that came or went
+     *  since the last refresh change the tree (template thread only)
+     * @param pending The txs of the follow-up template
+     * @return Returns the merkle root of the txs (or 'empty')
+     */
+    private String followUpRoot(TreeSet<Transaction> pending) {
+        Iterator<Transaction> it = followUpTxs.iterator();
+        while(it.hasNext()) {
+            Transaction tx = it.next();
+            if(!pending.contains(tx)) {
+                it.remove();
+                followUpMerkle.remove(tx.getDigest());
+            }
+        }
+        for(Transaction tx : pending) {
+            if(followUpTxs.add(tx)) {
+                followUpMerkle.add(tx.getDigest());
+            }
+        }
+
+        byte[] root = followUpMerkle.root();
+        return (root == null) ? "empty" : Hashing.toHex(root);
+    }
+
+    /** Removes the txs of a mined block from the mempool and clears the pending txs file */
+    private Runnable removeIncluded(final Block mined) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    new PrintWriter(network.getTxFile()).close();
+                    miner.removeTransactions(mined.getTransactions());
+                } catch (Exception er) {
+                    System.out.println("FAIL DELETING TX FILE CONTENTS: " + er);
+                }
+            }
+        };
+    }
+}
+
+/** A prepared template and the block it was prepared to follow */
+class followUpTemplate {
+    private final Block base;
+    private final Block template;
+
+    public followUpTemplate(Block base, Block template) {
+        this.base = base;
+        this.template = template;
+    }
+
+    public Block getBase() {
+        return base;
+    }
+
+    public Block getTemplate() {
+        return template;
+    }
+}
@@ -11,7 +11,6 @@ import net.tomp2p.peers.Number160;
 import net.tomp2p.peers.PeerAddress;
 import net.tomp2p.rpc.ObjectDataReply;
 import net.tomp2p.storage.Data;
-import org.apache.commons.lang3.SerializationUtils;
 import org.codehaus.jackson.map.ObjectMapper;
 import java.io.*;
 import java.net.*;
@@ -19,6 +18,7 @@ import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Network {
     private PeerDHT pdht;
@@ -27,6 +27,7 @@ public class Network {
     private LinkedList<chainTip> chainTips = new LinkedList<>();
     private boolean start = true;
     private Peer peer;
+    private final Set<String> requestedProofs = ConcurrentHashMap.newKeySet();   // tx hashes we asked peers to prove
 
     /** Creates RSA key pair for user */
     public void generateRSAKey() {
@@ -158,6 +159,11 @@ public class Network {
                 @Override
                 public Object reply(PeerAddress pa, Object o) throws Exception {
 
+                    // Blocks, headers and transactions arrive binary encoded
+                    if(o instanceof byte[]) {
+                        o = BinaryCodec.decode((byte[]) o);
+                    }
+
                     // Transaction object received, verify it, then add to file if valid
                     if(o.getClass().getName().equals(Transaction.class.getName())) {
                         try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(getTxFile(), true))) {
@@ -175,16 +181,27 @@ public class Network {
                     else if(o.getClass().getName().equals(Block.class.getName())) {
                         try {
                             System.out.println("\n\nBlock received, checking its validity");
+                            String h = new Miner().hash((Block) o);
+                            final PeerAddress from = pa;
                             // Verify block has been mined successfully ie. hash starts with correct no. of 0's
-                            if(new Miner().verifyMined( (Block) o ) ) {
+                            if(chain.hasBlock(h)) {
+                                System.out.println("block received is already stored");
+                                // this reply thread and the block writer both go through the unofficial blocks,
+                                // checkUnofficial() holds the lock of the list so only one of them does at a time
+                                chain.checkUnofficial(from);
+                            }
+                            else if(new Miner().verifyMined( (Block) o ) ) {
                                 System.out.println("block received is mined..");
                                 if (chain.validateInChain((Block) o)) {
                                     System.out.println("block is linked, so we add it");
                                     if(chain.validateDifficulty((Block) o)) {
-                                        // Store block in LevelDB
-                                        String h = new Miner().hash((Block) o);
-                                        chain.storeBlock(h, (Block) o);
-                                        chain.checkUnofficial(pa);
+                                        // Store block in LevelDB (on the block writer thread, so this reply thread isn't held up by the disk)
+                                        chain.submitBlock(h, (Block) o).thenRun(new Runnable() {
+                                            @Override
+                                            public void run() {
+                                                chain.checkUnofficial(from);
+                                            }
+                                        });
                                     }
                                     else {
                                         System.out.println("block difficulty levels are not correct!");
@@ -253,7 +270,18 @@ public class Network {
                     // List of blocks requested by peer received
                     else if(o.getClass().getName().equals(ArrayList.class.getName())) {
                         System.out.println("\npeer " + pa + " ; requested my blockchain");
-                        LinkedList<Block> blockchain = chain.getRequestedBlocks( (ArrayList<String>)o );
+                        @SuppressWarnings("unchecked")
+                        ArrayList<String> requested = (ArrayList<String>) o;
+                        LinkedList<Block> blockchain = chain.getRequestedBlocks(requested);
+                        // tell the peer which ones it won't get (only the ones we have no body for can be pruned),
+                        // so it doesn't keep asking us for them
+                        if(blockchain.size() < requested.size()) {
+                            for(String h : requested) {
+                                if(chain.isPruned(h)) {
+                                    announce(("pruned-" + h), pa);
+                                }
+                            }
+                        }
 
                         System.out.println("\n\nMy blockchain is: " + blockchain);
                         System.out.println("sending my blockchain linkedlist..");
@@ -276,6 +304,23 @@ public class Network {
 
                     }
 
+                    // Merkle proof received -> check it against the header we have stored
+                    else if(o.getClass().getName().equals(MerkleTree.merkleProof.class.getName())) {
+                        MerkleTree.merkleProof proof = (MerkleTree.merkleProof) o;
+                        System.out.println("merkle proof received from " + pa + ": " + proof);
+
+                        if(!requestedProofs.contains(proof.getTxHash())) {
+                            System.out.println("merkle proof for tx " + proof.getTxHash() + " wasn't asked for, dropped");
+                        }
+                        else if(chain.verifyProof(proof)) {
+                            requestedProofs.remove(proof.getTxHash());
+                            System.out.println("tx " + proof.getTxHash() + " is confirmed in block " + proof.getBlockHash());
+                        }
+                        else {
+                            System.out.println("merkle proof for tx " + proof.getTxHash() + " is not valid");
+                        }
+                    }
+
                     // String message received
                     else if(o.getClass().getName().equals(String.class.getName())) {
                         try{
@@ -297,9 +342,13 @@ public class Network {
                             // Request Block msg received
                             else if(msg.startsWith("b-")) {
                                 String hash = msg.substring(2);
-                                byte[] res = chain.read(chain.getBlockDB(), hash.getBytes());
-                                Block b = (Block) SerializationUtils.deserialize(res);
-                                announce(b, pa);
+                                Block b = chain.getBlock(hash);
+                                if(b == null && chain.isPruned(hash)) {
+                                    announce(("pruned-" + hash), pa);
+                                }
+                                else {
+                                    announce(b, pa);
+                                }
                             }
 
                             // Request all Chain Headers msg received
@@ -309,10 +358,44 @@ public class Network {
                                 announce(toSend, pa);
                             }
 
+                            // Request Partition Table msg received -> send the k-anonymous prefixes of our chaintip
+                            else if(msg.equals("rpt")) {
+                                announce(("pt-" + BlockLSH.partitionToString(BlockLSH.partition)), pa);
+                            }
+
+                            // Partition table received -> 'pt-<prefix count lines>'
+                            else if(msg.startsWith("pt-")) {
+                                System.out.println("partition table of peer " + pa + ":\n" + msg.substring(3));
+                            }
+
                             else if(msg.equals("ct-null")) {
                                 // do nothing
                             }
 
+                            // Peer only has the header of a block we asked for -> 'pruned-<blockhash>'
+                            else if(msg.startsWith("pruned-")) {
+                                String hash = msg.substring(7);
+                                System.out.println("peer " + pa + " has pruned block " + hash);
+                                chain.getRequest().remove(hash);
+                            }
+
+                            else if(msg.equals("mp-null")) {
+                                System.out.println("peer " + pa + " has no merkle proof for our tx");
+                            }
+
+                            // Request Merkle proof msg received -> 'mp-<blockhash>-<txhash>' or 'mp-<txhash>'
+                            else if(msg.startsWith("mp-")) {
+                                String[] hashes = msg.substring(3).split("-");
+                                MerkleTree.merkleProof proof = (hashes.length == 2) ? chain.getMerkleProof(hashes[0], hashes[1]) : chain.getMerkleProof(null, hashes[0]);
+
+                                if(proof == null) {
+                                    announce("mp-null", pa);
+                                }
+                                else {
+                                    announce(proof, pa);
+                                }
+                            }
+
                         } catch(Exception e) {
                             System.out.println("STRING RCV ERROR: " + e);
                         }
@@ -388,7 +471,7 @@ public class Network {
             System.out.println("p adr: " + pdht.peer().peerBean().peerMap().all());
             // Transmit message to each peer individually
             for(PeerAddress pa : pdht.peer().peerBean().peerMap().all()) {
-                FutureDirect fd = pdht.peer().sendDirect(pa).object(tx).start();
+                FutureDirect fd = pdht.peer().sendDirect(pa).object(BinaryCodec.encode(tx)).start();
 
                 fd.addListener(new BaseFutureAdapter<FutureDirect>() {
                     @Override
@@ -415,7 +498,7 @@ public class Network {
             System.out.println("p adr: " + pdht.peer().peerBean().peerMap().all());
             // Transmit message to each peer individually
             for(PeerAddress pa : pdht.peer().peerBean().peerMap().all()) {
-                FutureDirect fd = pdht.peer().sendDirect(pa).object(b).start();
+                FutureDirect fd = pdht.peer().sendDirect(pa).object(BinaryCodec.encode(b)).start();
 
                 fd.addListener(new BaseFutureAdapter<FutureDirect>() {
                     @Override
@@ -441,7 +524,7 @@ public class Network {
     public void announce(Block b, PeerAddress pa) {
         try{
             // Transmit message to peer directly
-            FutureDirect fd = pdht.peer().sendDirect(pa).object(b).start();
+            FutureDirect fd = pdht.peer().sendDirect(pa).object(BinaryCodec.encode(b)).start();
 
             fd.addListener(new BaseFutureAdapter<FutureDirect>() {
                 @Override
@@ -465,7 +548,7 @@ public class Network {
     public void announce(indexBlock ib, PeerAddress pa) {
         try{
             // Transmit message to peer directly
-            FutureDirect fd = pdht.peer().sendDirect(pa).object(ib).start();
+            FutureDirect fd = pdht.peer().sendDirect(pa).object(BinaryCodec.encode(ib)).start();
 
             fd.addListener(new BaseFutureAdapter<FutureDirect>() {
                 @Override
@@ -489,7 +572,8 @@ public class Network {
     public void announce(LinkedList lib, PeerAddress pa) {
         try{
             // Transmit message to peer directly
-            FutureDirect fd = pdht.peer().sendDirect(pa).object(lib).start();
+            Object payload = BinaryCodec.canEncode(lib) ? BinaryCodec.encode(lib) : lib;
+            FutureDirect fd = pdht.peer().sendDirect(pa).object(payload).start();
 
             fd.addListener(new BaseFutureAdapter<FutureDirect>() {
                 @Override
@@ -530,6 +614,49 @@ public class Network {
         }
     }
 
+    /** Sends a Merkle proof to a particular peer
+     * @param proof The proof object we want to transmit
+     * @param pa The address of the peer we want to send the object to
+     */
+    public void announce(MerkleTree.merkleProof proof, PeerAddress pa) {
+        try{
+            // Transmit message to peer directly
+            FutureDirect fd = pdht.peer().sendDirect(pa).object(proof).start();
+
+            fd.addListener(new BaseFutureAdapter<FutureDirect>() {
+                @Override
+                public void operationComplete(FutureDirect future) throws Exception {
+                    if(future.isSuccess()) { // this flag indicates if the future was successful
+                        System.out.println("merkle proof to particular peer sent successfully");
+                    } else {
+                        System.out.println("merkle proof to particular peer sent fail");
+                    }
+                }
+            });
+        } catch(Exception e) {
+            System.out.println("PARTICULAR MERKLE PROOF ANNON ERROR : " + e);
+        }
+    }
+
+    /** Asks all peers for the Merkle proof of one of our transactions
+     * @param blockHash The hash of the block the transaction should be in, or null to let the peer search for it
+     * @param txHash The hash of the transaction
+     */
+    public void requestProof(String blockHash, String txHash) {
+        requestedProofs.add(txHash);
+        if(blockHash == null) {
+            announce("mp-" + txHash);
+        }
+        else {
+            announce("mp-" + blockHash + "-" + txHash);
+        }
+    }
+
+    /** Asks peers for the k-anonymous prefixes of their chaintip (see BlockLSH.getPartition()) */
+    public void requestPartition() {
+        announce("rpt");
+    }
+
     /** Sends a String msg to all peers it knows
      * @param s The String object we want to transmit*/
     public void announce(String s) {
@@ -0,0 +1,160 @@
+import java.io.IOException;
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/** eTLD+1 of a host, a port of golang.org/x/net/publicsuffix (PublicSuffix and EffectiveTLDPlusOne) so SimHash picks the
+ *  same domains as the Go simulator. The rules are read from 'suffixListFile', a copy of publicsuffix.org's
+ *  public_suffix_list.dat kept in the repo, instead of a list bundled with a library, so both sides can be pinned to the
+ *  same revision ('go test ./packages/floc' checks the file against the table of the x/net version in go.sum).
+ *  Like the Go package, labels are matched case-sensitively and unlisted suffixes fall back to the '*' rule */
+public class PublicSuffix {
+
+    // ####################################################################
+    // ## Public suffix list the eTLD+1 of the hosts are worked out from ##
+    // ####################################################################
+    public static String suffixListFile = "public_suffix_list.dat";
+
+    private static final int PARENT_ONLY = 0;   // only there for the labels below it
+    private static final int NORMAL = 1;        // a rule
+    private static final int EXCEPTION = 2;     // a '!' rule
+
+    private static suffixNode root;
+
+    /** Returns the registrable domain of a host, ie. its public suffix and one more label (eg. 'en.wikipedia.org' -> 'wikipedia.org')
+     * @param domain The host
+     * @return Returns the eTLD+1
+     * @throws IllegalArgumentException if the host has an empty label or is a public suffix itself
+     */
+    public static String effectiveTLDPlusOne(String domain) {
+        if(domain.startsWith(".") || domain.endsWith(".") || domain.contains("..")) {
+            throw new IllegalArgumentException("publicsuffix: empty label in domain " + domain);
+        }
+
+        String suffix = publicSuffix(domain);
+        if(domain.length() <= suffix.length()) {
+            throw new IllegalArgumentException("publicsuffix: cannot derive eTLD+1 for domain " + domain);
+        }
+        int i = domain.length() - suffix.length() - 1;
+        if(domain.charAt(i) != '.') {
+            throw new IllegalArgumentException("publicsuffix: invalid suffix " + suffix + " for domain " + domain);
+        }
+        return domain.substring(1 + domain.lastIndexOf('.', i - 1));
+    }
+
+    /** Returns the public suffix of a host (eg. 'www.bbc.co.uk' -> 'co.uk'), the same walk over the labels as the Go code
+     * @param domain The host
+     * @return Returns the suffix
+     */
+    public static String publicSuffix(String domain) {
+        suffixNode node = rules();
+        String s = domain;
+        int suffix = domain.length();
+        boolean wildcard = false;
+
+        while(true) {
+            int dot = s.lastIndexOf('.');
+            if(wildcard) {
+                suffix = 1 + dot;
+            }
+            if(node.children.isEmpty()) {
+                break;
+            }
+            suffixNode found = node.children.get(s.substring(1 + dot));
+            if(found == null) {
+                break;
+            }
+
+            node = found;
+            if(node.type == NORMAL) {
+                suffix = 1 + dot;
+            } else if(node.type == EXCEPTION) {
+                suffix = 1 + s.length();
+                break;
+            }
+            wildcard = node.wildcard;
+
+            if(dot == -1) {
+                break;
+            }
+            s = s.substring(0, dot);
+        }
+
+        if(suffix == domain.length()) {
+            // no rule matches, so the prevailing rule is '*'
+            return domain.substring(1 + domain.lastIndexOf('.'));
+        }
+        return domain.substring(suffix);
+    }
+
+    /** Returns the rules, reading them from 'suffixListFile' the first time */
+    private static synchronized suffixNode rules() {
+        if(root == null) {
+            try {
+                root = load(new String(Files.readAllBytes(Paths.get(suffixListFile)), StandardCharsets.UTF_8));
+            } catch(IOException ioe) {
+                throw new IllegalStateException("can't read the public suffix list " + suffixListFile + ": " + ioe);
+            }
+        }
+        return root;
+    }
+
+    /** Builds the tree of labels of a public suffix list the way x/net's gen.go builds its table: a rule marks the node of
+     *  its first label, '*.' marks the node below it as a wildcard, and the labels are converted to ASCII (punycode)
+     * @param list The contents of public_suffix_list.dat
+     * @return Returns the root of the tree
+     */
+    static suffixNode load(String list) {
+        suffixNode top = new suffixNode();
+        for(String line : list.split("\n")) {
+            String rule = line.trim();
+            if(rule.isEmpty() || rule.startsWith("//")) {
+                continue;
+            }
+            // a rule ends at the first whitespace
+            rule = rule.split("\\s", 2)[0];
+
+            int type = NORMAL;
+            boolean wildcard = false;
+            if(rule.startsWith("*.")) {
+                rule = rule.substring(2);
+                type = PARENT_ONLY;
+                wildcard = true;
+            } else if(rule.startsWith("!")) {
+                rule = rule.substring(1);
+                type = EXCEPTION;
+            }
+            rule = IDN.toASCII(rule, IDN.ALLOW_UNASSIGNED);
+
+            String[] labels = rule.split("\\.");
+            suffixNode node = top;
+            for(int i = labels.length - 1; i >= 0; i--) {
+                node = node.child(labels[i]);
+            }
+            if(type != PARENT_ONLY && node.type == PARENT_ONLY) {
+                node.type = type;
+            }
+            node.wildcard |= wildcard;
+        }
+        return top;
+    }
+}
+
+/** A label of the public suffix list and the labels that can be in front of it */
+class suffixNode {
+    final Map<String, suffixNode> children = new HashMap<>();
+    int type;               // PARENT_ONLY, NORMAL or EXCEPTION
+    boolean wildcard;       // '*.' rule below this label
+
+    suffixNode child(String label) {
+        suffixNode c = children.get(label);
+        if(c == null) {
+            c = new suffixNode();
+            children.put(label, c);
+        }
+        return c;
+    }
+}
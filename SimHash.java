@@ -0,0 +1,381 @@
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/** FLoC SimHash of a browsing history, a port of packages/floc (cityhash_v103.go, sim_hash.go and setup.go) so the
+ *  cohort hash is worked out in-process instead of through 'go run main.go'.
+ *  CityHash64 v1.0.3 works on unsigned 64 bit values, Java longs hold the same bits (+, -, *, ^ and << are the same,
+ *  >>> is used for >>), only the conversion to a double needs care. The eTLD+1 of the hosts come from PublicSuffix.
+ *  'java SimHashVectors' (in test/) checks it against the vectors of the Go code in 'simhash_vectors.txt' */
+public class SimHash {
+    private static final long k0 = 0xc3a5c85c97cb3127L;
+    private static final long k1 = 0xb492b66fbe98f273L;
+    private static final long k2 = 0x9ae16a3b2f90404fL;
+    private static final long k3 = 0xc949d7c7509e6557L;
+
+    private static final double MAX_UINT64 = 18446744073709551615.0;   // float64(math.MaxUint64), ie. 2^64
+    private static final double TWO_PI = 2.0 * 3.141592653589793;
+
+    public static final int FLOC_BITS = 50;     // kMaxNumberOfBitsInFloc
+
+    private static final ObjectMapper json = new ObjectMapper();
+
+    // #######################################################################
+    // ## Min. number of domains in a history to work out a cohort hash for ##
+    // #######################################################################
+    public static int minDomains = 7;
+
+    /** Calculates the cohort hash of a host list file (a JSON array of host names), like 'go run main.go <file>'
+     * @param filename The .json file with the hosts
+     * @param bits The number of bits of the hash (eg. 50)
+     * @return Returns the SimHash of the eTLD+1 of the hosts
+     * @throws Exception if the file can't be read or has fewer than 'minDomains' hosts
+     */
+    public static long hashFile(String filename, int bits) throws Exception {
+        String[] hosts = json.readValue(new File(filename), String[].class);
+        if(hosts.length < minDomains) {
+            throw new IllegalArgumentException("Too small host list. Need more than " + minDomains + " domains.");
+        }
+
+        List<String> domains = new ArrayList<>();
+        for(String host : hosts) {
+            domains.add(PublicSuffix.effectiveTLDPlusOne(host));
+        }
+        return hashDomains(domains, bits);
+    }
+
+    /** Calculates the SimHash of a list of domains, every distinct domain has weight 1 (SimHashString)
+     * @param domains The domains
+     * @param bits The number of bits of the hash (at most 64)
+     * @return Returns the hash
+     */
+    public static long hashDomains(List<String> domains, int bits) {
+        Set<Long> features = new LinkedHashSet<>();
+        for(String domain : domains) {
+            features.add(cityHash64(domain.getBytes(StandardCharsets.UTF_8)));
+        }
+        return hashFeatures(features, bits);
+    }
+
+    /** Calculates the SimHash of a set of features of weight 1 (simHashBits): bit d is set if the sum of a gaussian
+     *  random value per feature for dimension d is positive
+     * @param features The feature hashes
+     * @param bits The number of bits of the hash (at most 64)
+     * @return Returns the hash
+     */
+    public static long hashFeatures(Set<Long> features, int bits) {
+        long result = 0;
+        for(int d = 0; d < bits; d++) {
+            double acc = 0;
+            for(long hash : features) {
+                acc += randomGaussian(d, hash);
+            }
+            if(acc > 0) {
+                result |= 1L << d;
+            }
+        }
+        return result;
+    }
+
+    /** Box-Muller transform of two uniform values drawn for (i, j). Log and cos are ports of Go's math.Log and math.Cos
+     *  (StrictMath is fdlibm, whose last bit can differ and flip a bit of the hash), sqrt is exact in both */
+    static double randomGaussian(long i, long j) {
+        double rv1 = randomUniform(i, j, 1);
+        double rv2 = randomUniform(j, i, 2);
+        return Math.sqrt(-2.0 * goLog(rv1)) * goCos(TWO_PI * rv2);
+    }
+
+    /** Natural logarithm, the algorithm of Go's math.Log (log.go, from FreeBSD's e_log.c), term for term */
+    static double goLog(double x) {
+        final double Ln2Hi = 6.93147180369123816490e-01;     // 3fe62e42 fee00000
+        final double Ln2Lo = 1.90821492927058770002e-10;     // 3dea39ef 35793c76
+        final double L1 = 6.666666666666735130e-01;          // 3FE55555 55555593
+        final double L2 = 3.999999999940941908e-01;          // 3FD99999 9997FA04
+        final double L3 = 2.857142874366239149e-01;          // 3FD24924 94229359
+        final double L4 = 2.222219843214978396e-01;          // 3FCC71C5 1D8E78AF
+        final double L5 = 1.818357216161805012e-01;          // 3FC74664 96CB03DE
+        final double L6 = 1.531383769920937332e-01;          // 3FC39A09 D078C69F
+        final double L7 = 1.479819860511658591e-01;          // 3FC2F112 DF3E5244
+
+        if(Double.isNaN(x) || x == Double.POSITIVE_INFINITY) {
+            return x;
+        }
+        if(x < 0) {
+            return Double.NaN;
+        }
+        if(x == 0) {
+            return Double.NEGATIVE_INFINITY;
+        }
+
+        // reduce (Frexp: x = f1 * 2^ki, f1 in [0.5, 1))
+        int ki = 0;
+        if(Math.getExponent(x) < Double.MIN_EXPONENT) {
+            // subnormal
+            x *= 0x1p52;
+            ki = -52;
+        }
+        int exp = Math.getExponent(x) + 1;
+        double f1 = Math.scalb(x, -exp);
+        ki += exp;
+        if(f1 < 0.70710678118654752440) {   // Sqrt2/2
+            f1 *= 2;
+            ki--;
+        }
+        double f = f1 - 1;
+        double k = ki;
+
+        // compute
+        double s = f / (2 + f);
+        double s2 = s * s;
+        double s4 = s2 * s2;
+        double t1 = s2 * (L1 + s4 * (L3 + s4 * (L5 + s4 * L7)));
+        double t2 = s4 * (L2 + s4 * (L4 + s4 * L6));
+        double R = t1 + t2;
+        double hfsq = 0.5 * f * f;
+        return k * Ln2Hi - ((hfsq - (s * (hfsq + R) + k * Ln2Lo)) - f);
+    }
+
+    private static final double[] goSin = {
+            1.58962301576546568060e-10,     // 0x3de5d8fd1fd19ccd
+            -2.50507477628578072866e-8,     // 0xbe5ae5e5a9291f5d
+            2.75573136213857245213e-6,      // 0x3ec71de3567d48a1
+            -1.98412698295895385996e-4,     // 0xbf2a01a019bfdf03
+            8.33333333332211858878e-3,      // 0x3f8111111110f7d0
+            -1.66666666666666307295e-1,     // 0xbfc5555555555548
+    };
+    private static final double[] goCos = {
+            -1.13585365213876817300e-11,    // 0xbda8fa49a0861a9b
+            2.08757008419747316778e-9,      // 0x3e21ee9d7b4e3f05
+            -2.75573141792967388112e-7,     // 0xbe927e4f7eac4bc6
+            2.48015872888517045348e-5,      // 0x3efa01a019c844f5
+            -1.38888888888730564116e-3,     // 0xbf56c16c16c14f91
+            4.16666666666665929218e-2,      // 0x3fa555555555554b
+    };
+
+    /** Cosine, the algorithm of Go's math.Cos (sin.go, from Cephes) term for term, for |x| < 2^29 (Go switches to
+     *  Payne-Hanek reduction above that, the argument here is at most 2 pi) */
+    static double goCos(double x) {
+        final double PI4A = 7.85398125648498535156e-1;       // 0x3fe921fb40000000, Pi/4 split into three parts
+        final double PI4B = 3.77489470793079817668e-8;       // 0x3e64442d00000000
+        final double PI4C = 2.69515142907905952645e-15;      // 0x3ce8469898cc5170
+
+        if(Double.isNaN(x) || Double.isInfinite(x)) {
+            return Double.NaN;
+        }
+        x = Math.abs(x);
+        if(x >= 0x1p29) {
+            throw new IllegalArgumentException("goCos argument too large: " + x);
+        }
+
+        boolean sign = false;
+        long j = (long) (x * 1.27323954473516268615);   // integer part of x/(Pi/4) (4/Pi)
+        double y = j;
+        // map zeros to origin
+        if((j & 1) == 1) {
+            j++;
+            y++;
+        }
+        j &= 7;     // octant modulo 2Pi radians
+        double z = ((x - y * PI4A) - y * PI4B) - y * PI4C;
+
+        if(j > 3) {
+            j -= 4;
+            sign = !sign;
+        }
+        if(j > 1) {
+            sign = !sign;
+        }
+
+        double zz = z * z;
+        if(j == 1 || j == 2) {
+            y = z + z * zz * ((((((goSin[0] * zz) + goSin[1]) * zz + goSin[2]) * zz + goSin[3]) * zz + goSin[4]) * zz + goSin[5]);
+        } else {
+            y = 1.0 - 0.5 * zz + zz * zz * ((((((goCos[0] * zz) + goCos[1]) * zz + goCos[2]) * zz + goCos[3]) * zz + goCos[4]) * zz + goCos[5]);
+        }
+        return sign ? -y : y;
+    }
+
+    /** A uniform value in [0, 1], the seeded CityHash64 of i and j (little-endian) over the max. unsigned 64 bit value */
+    static double randomUniform(long i, long j, long seed) {
+        // hash64Len0to16() of the 16 bytes, without putting i and j into an array first
+        long hash = hash128to64(i, rotateByAtLeast1(j + 16, 16)) ^ j;
+        return unsignedToDouble(hash128to64(hash - k2, seed)) / MAX_UINT64;
+    }
+
+    /** Converts an unsigned 64 bit value to the nearest double, like Go's float64(uint64) */
+    static double unsignedToDouble(long x) {
+        if(x >= 0) {
+            return (double) x;
+        }
+        // halve it keeping the lowest bit, so it still rounds the same way
+        return (double) ((x >>> 1) | (x & 1)) * 2.0;
+    }
+
+    /** CityHash64 v1.0.3 of a byte array
+     * @param s The bytes to hash
+     * @return Returns the hash (as unsigned 64 bits)
+     */
+    public static long cityHash64(byte[] s) {
+        int n = s.length;
+        if(n <= 32) {
+            if(n <= 16) {
+                return hash64Len0to16(s);
+            }
+            return hash64Len17to32(s);
+        }
+        else if(n <= 64) {
+            return hash64Len33to64(s);
+        }
+
+        // For strings over 64 bytes we hash the end first, and then as we loop we
+        // keep 56 bytes of state: v, w, x, y, and z.
+        long x = fetch64(s, n - 40);
+        long y = fetch64(s, n - 16) + fetch64(s, n - 56);
+        long z = hash128to64(fetch64(s, n - 48) + n, fetch64(s, n - 24));
+
+        long[] v = weakHashLen32WithSeeds(s, n - 64, n, z);
+        long[] w = weakHashLen32WithSeeds(s, n - 32, y + k1, x);
+        x = x * k1 + fetch64(s, 0);
+
+        // Decrease n to the nearest multiple of 64, and operate on 64-byte chunks.
+        int left = (n - 1) & ~63;
+        int off = 0;
+        do {
+            x = ror64(x + y + v[0] + fetch64(s, off + 8), 37) * k1;
+            y = ror64(y + v[1] + fetch64(s, off + 48), 42) * k1;
+            x ^= w[1];
+            y += v[0] + fetch64(s, off + 40);
+            z = ror64(z + w[0], 33) * k1;
+            v = weakHashLen32WithSeeds(s, off, v[1] * k1, x + w[0]);
+            w = weakHashLen32WithSeeds(s, off + 32, z + w[1], y + fetch64(s, off + 16));
+            long t = z;
+            z = x;
+            x = t;
+            off += 64;
+            left -= 64;
+        } while(left != 0);
+
+        return hash128to64(hash128to64(v[0], w[0]) + shiftMix(y) * k1 + z, hash128to64(v[1], w[1]) + x);
+    }
+
+    /** CityHash64 v1.0.3 of a byte array with a seed */
+    public static long cityHash64WithSeed(byte[] s, long seed) {
+        return cityHash64WithSeeds(s, k2, seed);
+    }
+
+    /** CityHash64 v1.0.3 of a byte array with two seeds */
+    public static long cityHash64WithSeeds(byte[] s, long seed0, long seed1) {
+        return hash128to64(cityHash64(s) - seed0, seed1);
+    }
+
+    private static long hash64Len0to16(byte[] s) {
+        int n = s.length;
+        if(n > 8) {
+            long a = fetch64(s, 0);
+            long b = fetch64(s, n - 8);
+            long c = rotateByAtLeast1(b + n, n);
+            return hash128to64(a, c) ^ b;
+        }
+        if(n >= 4) {
+            long a = fetch32(s, 0);
+            return hash128to64(n + (a << 3), fetch32(s, n - 4));
+        }
+        if(n > 0) {
+            int a = s[0] & 0xff;
+            int b = s[n >> 1] & 0xff;
+            int c = s[n - 1] & 0xff;
+            long y = a + (b << 8);
+            long z = n + (c << 2);
+            return shiftMix(y * k2 ^ z * k3) * k2;
+        }
+        return k2;
+    }
+
+    private static long hash64Len17to32(byte[] s) {
+        int n = s.length;
+        long a = fetch64(s, 0) * k1;
+        long b = fetch64(s, 8);
+        long c = fetch64(s, n - 8) * k2;
+        long d = fetch64(s, n - 16) * k0;
+        return hash128to64(ror64(a - b, 43) + ror64(c, 30) + d, a + ror64(b ^ k3, 20) - c);
+    }
+
+    private static long hash64Len33to64(byte[] s) {
+        int n = s.length;
+        long mul = k2 + n * 2L;
+        long a = fetch64(s, 0) * k2;
+        long b = fetch64(s, 8);
+        long c = fetch64(s, n - 24);
+        long d = fetch64(s, n - 32);
+        long e = fetch64(s, 16) * k2;
+        long f = fetch64(s, 24) * 9;
+        long g = fetch64(s, n - 8);
+        long h = fetch64(s, n - 16) * mul;
+        long u = ror64(a + g, 43) + (ror64(b, 30) + c) * 9;
+        long v = ((a + g) ^ d) + f + 1;
+        long w = Long.reverseBytes((u + v) * mul) + h;
+        long x = ror64(e + f, 42) + c;
+        long y = (Long.reverseBytes((v + w) * mul) + g) * mul;
+        long z = e + f + c;
+        a = Long.reverseBytes((x + z) * mul + y) + b;
+        b = shiftMix((z + a) * mul + d + h) * mul;
+        return b + x;
+    }
+
+    /** Returns the pair {a + z, b + c} of weakHashLen32WithSeeds() of the Go code for the 32 bytes at 'off' */
+    private static long[] weakHashLen32WithSeeds(byte[] s, int off, long a, long b) {
+        long w = fetch64(s, off);
+        long x = fetch64(s, off + 8);
+        long y = fetch64(s, off + 16);
+        long z = fetch64(s, off + 24);
+
+        a += w;
+        b = ror64(b + a + z, 21);
+        long c = a;
+        a += x;
+        a += y;
+        b += ror64(a, 44);
+        return new long[] {a + z, b + c};
+    }
+
+    /** Murmur-inspired hashing (hash64Len16 / hash128to64) */
+    private static long hash128to64(long lo, long hi) {
+        long mul = 0x9ddfea08eb382d69L;
+        long a = (lo ^ hi) * mul;
+        a ^= (a >>> 47);
+        long b = (hi ^ a) * mul;
+        b ^= (b >>> 47);
+        b *= mul;
+        return b;
+    }
+
+    private static long shiftMix(long val) {
+        return val ^ (val >>> 47);
+    }
+
+    private static long ror64(long val, int shift) {
+        return (shift == 0) ? val : Long.rotateRight(val, shift);
+    }
+
+    private static long rotateByAtLeast1(long val, int shift) {
+        return (val >>> shift) | (val << (64 - shift));
+    }
+
+    private static long fetch64(byte[] s, int off) {
+        long v = 0;
+        for(int x = 7; x >= 0; x--) {
+            v = (v << 8) | (s[off + x] & 0xff);
+        }
+        return v;
+    }
+
+    private static long fetch32(byte[] s, int off) {
+        return (s[off] & 0xffL) | (s[off + 1] & 0xffL) << 8 | (s[off + 2] & 0xffL) << 16 | (s[off + 3] & 0xffL) << 24;
+    }
+
+}
@@ -0,0 +1,60 @@
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import static org.iq80.leveldb.impl.Iq80DBFactory.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Keeps every LevelDB database open once it has been opened.
+ *  A LevelDB handle is safe to use from several threads at once, so the CLI thread, the TomP2P reply threads and the
+ *  mining service all share the same handle instead of paying for an open (manifest read, log replay, cold table cache)
+ *  on every key lookup. The handles are closed by closeAll() when the client shuts down */
+public class Storage {
+    private static final Map<String, DB> databases = new ConcurrentHashMap<>();
+
+    /** Returns the open handle of a database, opening (and creating) it the first time
+     * @param name The directory of the database, eg. 'index'
+     * @return Returns the database (or null if it can't be opened)
+     */
+    public static DB open(String name) {
+        DB db = databases.get(name);
+        if(db != null) {
+            return db;
+        }
+
+        synchronized(databases) {
+            db = databases.get(name);
+            if(db == null) {
+                try {
+                    Options options = new Options();
+                    options.createIfMissing(true);
+                    db = factory.open(new File(name), options);
+                    databases.put(name, db);
+                } catch(IOException ioe) {
+                    System.out.println("OPEN " + name + " IOE ERROR: " + ioe);
+                }
+            }
+            return db;
+        }
+    }
+
+    /** Closes all open databases and block files (called on shutdown, any later access reopens them) */
+    public static void closeAll() {
+        synchronized(databases) {
+            for(DB db : databases.values()) {
+                close(db);
+            }
+            databases.clear();
+        }
+        BlockFiles.closeAll();
+    }
+
+    private static void close(DB database) {
+        try {
+            database.close();
+        } catch(IOException ioe) {
+            System.out.println("CLOSE DB IOE ERROR: " + ioe);
+        }
+    }
+}
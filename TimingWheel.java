@@ -0,0 +1,200 @@
+/** Hierarchical timing wheel (Varghese and Lauck), schedules items to expire at a time in milliseconds and hands them
+ *  to a listener once advance() passes that time.
+ *  Time is cut into ticks of 'tickMillis', each level has 64 slots and a slot of level L covers 64^L ticks, so 6 levels
+ *  reach about 2000 years ahead at 1 second ticks. An item is put on the lowest level that reaches its tick and moves
+ *  down one or more levels when the wheel gets to its slot, so scheduling, cancelling and expiring are O(1) amortized
+ *  (at most one move per level) instead of O(log n) for a queue, and nothing is found by scanning every item.
+ *  Items fire at their exact time, the slot of the current tick is checked item by item. Not thread safe */
+public class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int LEVELS = 6;
+
+    /** Told about every item that expires */
+    public interface ExpiryListener<T> {
+        void expired(T item);
+    }
+
+    private final long tickMillis;
+    private final wheelTimer<T>[][] slots;     // [level][slot] -> sentinel of a circular list of timers
+    private long current = -1;                  // next tick to go through (-1 = not started)
+    private long cascaded = -1;                 // last tick the higher levels were moved down for
+    private int size = 0;
+
+    /**
+     * @param tickMillis The length of one tick in milliseconds, eg. 1000
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tickMillis) {
+        this.tickMillis = Math.max(tickMillis, 1);
+        this.slots = (wheelTimer<T>[][]) new wheelTimer<?>[LEVELS][SLOTS];
+        for(int level = 0; level < LEVELS; level++) {
+            for(int slot = 0; slot < SLOTS; slot++) {
+                wheelTimer<T> sentinel = new wheelTimer<>(null, 0);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                slots[level][slot] = sentinel;
+            }
+        }
+    }
+
+    /** Schedules an item
+     * @param item The item
+     * @param expires The time in milliseconds the item expires at (it may already have passed, it then expires on the next advance())
+     * @return Returns the timer of the item, to cancel it with
+     */
+    public wheelTimer<T> schedule(T item, long expires) {
+        wheelTimer<T> t = new wheelTimer<>(item, expires);
+        if(current < 0) {
+            // not advanced yet, start the clock at the first item
+            start(Math.floorDiv(expires, tickMillis));
+        }
+        place(t);
+        size++;
+        return t;
+    }
+
+    /** Cancels a scheduled item, it won't be handed to the listener
+     * @param t The timer returned by schedule()
+     * @return Returns false if the item already expired or was cancelled
+     */
+    public boolean cancel(wheelTimer<T> t) {
+        if(t == null || t.prev == null) {
+            return false;
+        }
+        unlink(t);
+        size--;
+        return true;
+    }
+
+    /** Expires every item due by now, in order of their ticks
+     * @param now The current time in milliseconds
+     * @param listener Told about each expired item (it may schedule items, but not cancel them)
+     */
+    public void advance(long now, ExpiryListener<T> listener) {
+        long target = Math.floorDiv(now, tickMillis);
+        if(size == 0) {
+            // nothing to go through on the way
+            if(target > current) {
+                start(target);
+            }
+            return;
+        }
+
+        // every item of the ticks before 'target' is due
+        while(current < target) {
+            enter(current);
+            wheelTimer<T> sentinel = slots[0][(int) (current & (SLOTS - 1))];
+            while(sentinel.next != sentinel) {
+                fire(sentinel.next, listener);
+            }
+            current++;
+            if(size == 0 && current < target) {
+                start(target);
+            }
+        }
+
+        // the items of the current tick are due only if their time has come
+        enter(current);
+        wheelTimer<T> sentinel = slots[0][(int) (current & (SLOTS - 1))];
+        wheelTimer<T> t = sentinel.next;
+        while(t != sentinel) {
+            wheelTimer<T> next = t.next;
+            if(t.expires <= now) {
+                fire(t, listener);
+            }
+            t = next;
+        }
+    }
+
+    /** Removes every item without telling the listener */
+    public void clear() {
+        for(int level = 0; level < LEVELS; level++) {
+            for(int slot = 0; slot < SLOTS; slot++) {
+                wheelTimer<T> sentinel = slots[level][slot];
+                while(sentinel.next != sentinel) {
+                    unlink(sentinel.next);
+                }
+            }
+        }
+        size = 0;
+        current = -1;
+        cascaded = -1;
+    }
+
+    /** Returns the number of scheduled items */
+    public int size() {
+        return size;
+    }
+
+    /** Moves the clock of an empty wheel to a tick (there is nothing to move down for the ticks skipped) */
+    private void start(long tick) {
+        current = tick;
+        cascaded = tick;
+    }
+
+    private void fire(wheelTimer<T> t, ExpiryListener<T> listener) {
+        unlink(t);
+        size--;
+        listener.expired(t.item);
+    }
+
+    /** Moves the items of the higher level slots that start at a tick down, once per tick */
+    private void enter(long tick) {
+        if(cascaded == tick) {
+            return;
+        }
+        cascaded = tick;
+        for(int level = 1; level < LEVELS; level++) {
+            // a level L slot starts every 64^L ticks
+            if((tick & ((1L << (BITS * level)) - 1)) != 0) {
+                break;
+            }
+            wheelTimer<T> sentinel = slots[level][(int) ((tick >>> (BITS * level)) & (SLOTS - 1))];
+            while(sentinel.next != sentinel) {
+                wheelTimer<T> t = sentinel.next;
+                unlink(t);
+                place(t);
+            }
+        }
+    }
+
+    /** Puts a timer into the slot of the lowest level that reaches its tick from the current one */
+    private void place(wheelTimer<T> t) {
+        long tick = Math.max(Math.floorDiv(t.expires, tickMillis), current);
+        long delta = tick - current;
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            level++;
+        }
+        if(delta >= (1L << (BITS * LEVELS))) {
+            // too far ahead, wait in the farthest slot and get placed again from there
+            tick = current + (1L << (BITS * LEVELS)) - 1;
+        }
+        wheelTimer<T> sentinel = slots[level][(int) ((tick >>> (BITS * level)) & (SLOTS - 1))];
+        t.prev = sentinel.prev;
+        t.next = sentinel;
+        sentinel.prev.next = t;
+        sentinel.prev = t;
+    }
+
+    private void unlink(wheelTimer<T> t) {
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = null;
+        t.next = null;
+    }
+}
+
+/** A scheduled item of a timing wheel, linked into the list of its slot */
+class wheelTimer<T> {
+    final T item;
+    final long expires;     // time in milliseconds
+    wheelTimer<T> prev;     // null once expired or cancelled
+    wheelTimer<T> next;
+
+    wheelTimer(T item, long expires) {
+        this.item = item;
+        this.expires = expires;
+    }
+}
@@ -1,12 +1,15 @@
 import com.sun.istack.internal.NotNull;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
 
 public class Transaction implements Serializable, Comparable<Transaction> {
+    private static final long serialVersionUID = 3702813816172546904L;  // kept so txs serialized by older versions can still be read
     private String date;
     private String cohort;
-    public long nonce;
+    private long nonce;
+    private transient volatile byte[] digest;    // cached SHA256 of toString(), reset whenever the cohort or nonce changes
 
     /** Returns current date
      * @return Returns the date as a String in the 'yyyy-MM-dd HH:mm:ss.SSS' format*/
@@ -21,13 +24,26 @@ public class Transaction implements Serializable, Comparable<Transaction> {
         this.nonce = 0;
     }
 
+    /** Constructor for a transaction that has already been made (eg. read back from storage) */
+    public Transaction(String d, String c, long n) {
+        this.date = d;
+        this.cohort = c;
+        this.nonce = n;
+    }
+
     @Override
     public String toString() {
+        return preimagePrefix() + nonce + '}';
+    }
+
+    /** Returns the part of toString() that comes before the nonce (constant while the transaction is mined)
+     * @return the hashing preimage up to and including 'nonce='
+     */
+    public String preimagePrefix() {
         return "Transaction{" +
                 "date='" + date + '\'' +
                 ", cohort='" + cohort + '\'' +
-                ", nonce=" + nonce +
-                '}';
+                ", nonce=";
     }
 
     /** Returns cohort ID of the transaction
@@ -51,19 +67,50 @@ public class Transaction implements Serializable, Comparable<Transaction> {
 
     public void setCohort(String cohort) {
         this.cohort = cohort;
+        this.digest = null;
+    }
+
+    public void setNonce(long nonce) {
+        this.nonce = nonce;
+        this.digest = null;
+    }
+
+    /** Returns the digest of the transaction, it is only calculated the first time it is needed after a change
+     * @return Returns the 32 byte SHA256 digest of toString() (shared, must not be modified)
+     */
+    public byte[] getDigest() {
+        byte[] d = digest;
+        if(d == null) {
+            d = Hashing.digest(this);
+            digest = d;
+        }
+        return d;
     }
 
     @Override
     public boolean equals(Object obj) {
-        return !super.equals(obj);
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof Transaction)) {
+            return false;
+        }
+        Transaction tx = (Transaction) obj;
+        return nonce == tx.nonce && date.equals(tx.date) && cohort.equals(tx.cohort);
+    }
+
+    @Override
+    public int hashCode() {
+        byte[] d = getDigest();
+        return ((d[0] & 0xFF) << 24) | ((d[1] & 0xFF) << 16) | ((d[2] & 0xFF) << 8) | (d[3] & 0xFF);
     }
 
     /**
-     * Compares two transaction objects by their hash values
+     * Compares two transaction objects by their hash values (same order as comparing the hex hash Strings)
      * @param tx the object to compare to
      */
     @Override
     public int compareTo(@NotNull Transaction tx) {
-        return BlockLSH.hash(this).compareTo(BlockLSH.hash(tx));
+        return Hashing.compare(getDigest(), 0, tx.getDigest());
     }
 }
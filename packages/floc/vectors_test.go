@@ -0,0 +1,210 @@
+package floc
+
+import (
+	"encoding/json"
+	"fmt"
+	"io/ioutil"
+	"math"
+	"os"
+	"path/filepath"
+	"runtime"
+	"strings"
+	"testing"
+
+	"golang.org/x/net/publicsuffix"
+)
+
+//
+// Test vectors shared with the Java port (SimHash.java, checked there by 'java SimHashVectors').
+//
+//   go test ./packages/floc                                          checks this package against simhash_vectors.txt
+//   FLOC_WRITE_VECTORS=1 go test ./packages/floc -run TestVectors    (re)writes simhash_vectors.txt from this package
+//
+// Both sides generate the same lines in the same order, lines starting with '#' are comments and aren't compared.
+// SimHashString sums the gaussians in map order, which changes from run to run; the host lists are expected to have
+// no bit whose sum is close enough to 0 for that to matter.
+//
+// The Java port reads its public suffix rules from public_suffix_list.dat, TestSuffixList checks that file against the
+// table of golang.org/x/net/publicsuffix. A rule it reports differs between the two: update the file to the list
+// revision of publicsuffix.List.String(), or drop the hosts under that rule from the host lists.
+//
+
+const vectorRoot = "../../"
+const vectorFile = vectorRoot + "simhash_vectors.txt"
+const vectorMaxLen = 256
+const vectorBits = 50
+
+func vectorHostLists() ([]string, error) {
+	lists, err := filepath.Glob(vectorRoot + "host_lists/*.json")
+	if err != nil {
+		return nil, err
+	}
+	return append([]string{vectorRoot + "host_list.json"}, lists...), nil
+}
+
+func vectors() ([]string, error) {
+	var lines []string
+
+	data := make([]byte, vectorMaxLen)
+	for k := range data {
+		data[k] = byte(k*37 + 11)
+	}
+	for n := 0; n <= vectorMaxLen; n++ {
+		lines = append(lines, fmt.Sprintf("city %d %016x", n, CityHash64V103(data[:n])))
+	}
+	for seed := uint64(1); seed <= 2; seed++ {
+		for n := 0; n <= vectorMaxLen; n++ {
+			lines = append(lines, fmt.Sprintf("seed %d %d %016x", seed, n, CityHash64WithSeedV103(data[:n], seed)))
+		}
+	}
+
+	// the hashes of the grid: the edges of uint64 and hashes like the ones of domains
+	js := []uint64{0, 1, 2, math.MaxUint64, 1 << 63}
+	for n := 0; n < 32; n++ {
+		js = append(js, CityHash64V103([]byte(fmt.Sprintf("j%d", n))))
+	}
+	for i := uint64(0); i < vectorBits; i++ {
+		for _, j := range js {
+			lines = append(lines, fmt.Sprintf("gauss %d %016x %016x", i, j, math.Float64bits(randomGaussian(i, j))))
+		}
+	}
+
+	files, err := vectorHostLists()
+	if err != nil {
+		return nil, err
+	}
+	for _, file := range files {
+		history_data, err := ioutil.ReadFile(file)
+		if err != nil {
+			return nil, err
+		}
+		var host_list []string
+		if err := json.Unmarshal(history_data, &host_list); err != nil {
+			return nil, err
+		}
+
+		var domain_list []string
+		for _, host := range host_list {
+			eTLDPlusOne, err := publicsuffix.EffectiveTLDPlusOne(host)
+			if err != nil {
+				return nil, err
+			}
+			lines = append(lines, fmt.Sprintf("etld1 %s %s", host, eTLDPlusOne))
+			domain_list = append(domain_list, eTLDPlusOne)
+		}
+		name := filepath.ToSlash(strings.TrimPrefix(file, vectorRoot))
+		lines = append(lines, fmt.Sprintf("simhash %s %d", name, SimHashString(domain_list, vectorBits)))
+	}
+	return lines, nil
+}
+
+func TestVectors(t *testing.T) {
+	lines, err := vectors()
+	if err != nil {
+		t.Fatal(err)
+	}
+
+	if os.Getenv("FLOC_WRITE_VECTORS") != "" {
+		header := []string{
+			"# SimHash test vectors of packages/floc, checked by 'go test ./packages/floc' and 'java SimHashVectors'",
+			"# written by: go test ./packages/floc (" + runtime.Version() + " " + runtime.GOARCH + ")",
+			"# publicsuffix: golang.org/x/net/publicsuffix, " + publicsuffix.List.String() + " (Java: public_suffix_list.dat)",
+		}
+		out := strings.Join(append(header, lines...), "\n") + "\n"
+		if err := ioutil.WriteFile(vectorFile, []byte(out), 0644); err != nil {
+			t.Fatal(err)
+		}
+		t.Logf("wrote %d vectors to %s", len(lines), vectorFile)
+		return
+	}
+
+	file, err := ioutil.ReadFile(vectorFile)
+	if err != nil {
+		t.Fatal(err)
+	}
+	var expected []string
+	for _, line := range strings.Split(strings.TrimRight(string(file), "\r\n"), "\n") {
+		line = strings.TrimRight(line, "\r")
+		if !strings.HasPrefix(line, "#") {
+			expected = append(expected, line)
+		}
+	}
+
+	if len(expected) != len(lines) {
+		t.Errorf("%d vectors, expected %d", len(lines), len(expected))
+	}
+	bad := 0
+	for x := 0; x < len(expected) && x < len(lines); x++ {
+		if expected[x] != lines[x] {
+			if bad < 20 {
+				t.Errorf("got '%s', expected '%s'", lines[x], expected[x])
+			}
+			bad++
+		}
+	}
+	if bad > 0 {
+		t.Errorf("%d vectors MISMATCH", bad)
+	}
+}
+
+// suffixOf returns the public suffix of a domain under a set of rules, as the publicsuffix.org algorithm defines it:
+// an exception rule wins, otherwise the longest matching rule, otherwise "*".
+func suffixOf(rules map[string]bool, domain string) string {
+	labels := strings.Split(domain, ".")
+	best := 1
+	for i := range labels {
+		name := strings.Join(labels[i:], ".")
+		if rules["!"+name] {
+			return strings.Join(labels[i+1:], ".")
+		}
+		if rules[name] && len(labels)-i > best {
+			best = len(labels) - i
+		}
+		if i > 0 && rules["*."+name] && len(labels)-i+1 > best {
+			best = len(labels) - i + 1
+		}
+	}
+	return strings.Join(labels[len(labels)-best:], ".")
+}
+
+func TestSuffixList(t *testing.T) {
+	list, err := ioutil.ReadFile(vectorRoot + "public_suffix_list.dat")
+	if err != nil {
+		t.Fatal(err)
+	}
+
+	rules := map[string]bool{}
+	for _, line := range strings.Split(string(list), "\n") {
+		rule := strings.TrimSpace(line)
+		if rule == "" || strings.HasPrefix(rule, "//") {
+			continue
+		}
+		if i := strings.IndexAny(rule, " \t"); i >= 0 {
+			rule = rule[:i]
+		}
+		rules[rule] = true
+	}
+
+	bad, skipped := 0, 0
+	for rule := range rules {
+		name := strings.TrimPrefix(strings.TrimPrefix(rule, "!"), "*.")
+		if strings.IndexFunc(name, func(r rune) bool { return r > 0x7f }) >= 0 {
+			// the Java port converts these to punycode like gen.go does, there is no idna here to do the same
+			skipped++
+			continue
+		}
+
+		domain := "x." + name
+		expected := suffixOf(rules, domain)
+		if got, _ := publicsuffix.PublicSuffix(domain); got != expected {
+			if bad < 50 {
+				t.Errorf("rule %s: x/net gives the suffix %s of %s, public_suffix_list.dat gives %s", rule, got, domain, expected)
+			}
+			bad++
+		}
+	}
+	t.Logf("%d rules checked against %s, %d non-ASCII rules skipped", len(rules)-skipped, publicsuffix.List.String(), skipped)
+	if bad > 0 {
+		t.Errorf("%d rules differ", bad)
+	}
+}
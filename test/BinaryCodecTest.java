@@ -0,0 +1,93 @@
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/** Round trips of the binary codec, in particular the compact tx layout of blocks (see BinaryCodec) */
+public class BinaryCodecTest {
+    private static final String DATE = "2021-06-01 12:00:00.000";
+
+    @Test
+    public void compactBlockRoundTrip() {
+        Random r = new Random(1);
+        TreeSet<Transaction> txs = new TreeSet<>();
+        for(int x = 0; x < 500; x++) {
+            // tx dates before and after the block date, and nonces of every varint length
+            long date = Hashing.dateToMillis(DATE) + r.nextInt(2000000) - 1000000;
+            txs.add(new Transaction(Hashing.millisToDate(date), cohort(r, 50), r.nextLong() >>> r.nextInt(64)));
+        }
+        // a repeated cohort (a difference of 0) and the edges of the nonce
+        String repeated = txs.first().getCohort();
+        txs.add(new Transaction(DATE, repeated, 0));
+        txs.add(new Transaction(DATE, repeated, Long.MAX_VALUE));
+        txs.add(new Transaction(DATE, repeated, -1));
+
+        assertRoundTrip(block(txs));
+    }
+
+    @Test
+    public void plainBlockRoundTrip() {
+        // cohorts of different lengths (and one that isn't a '0'/'1' string) can't use the compact layout
+        Random r = new Random(2);
+        TreeSet<Transaction> txs = new TreeSet<>();
+        for(int x = 0; x < 100; x++) {
+            txs.add(new Transaction(DATE, cohort(r, 1 + r.nextInt(80)), r.nextInt(1000)));
+        }
+        txs.add(new Transaction(DATE, "not a cohort", 7));
+
+        assertRoundTrip(block(txs));
+    }
+
+    @Test
+    public void blockWithoutTransactions() {
+        Block b = new Block("empty", 1, "GENESIS", 1, 1);
+        Block decoded = (Block) BinaryCodec.decode(BinaryCodec.encode(b));
+
+        assertNull(decoded.getTransactions());
+        assertEquals(Hashing.hash(b), Hashing.hash(decoded));
+    }
+
+    @Test
+    public void transactionRoundTrip() {
+        Transaction tx = new Transaction(DATE, cohort(new Random(3), 50), 123456789L);
+        Transaction decoded = (Transaction) BinaryCodec.decode(BinaryCodec.encode(tx));
+
+        assertEquals(Hashing.hash(tx), Hashing.hash(decoded));
+    }
+
+    private static Block block(TreeSet<Transaction> txs) {
+        Block b = new Block(new Miner().genMerkleRoot(txs), 42, "GENESIS", 3, 100);
+        b.date = DATE;
+        b.nonce = 987654321L;
+        b.setTransactions(txs);
+        return b;
+    }
+
+    private static void assertRoundTrip(Block b) {
+        Block decoded = (Block) BinaryCodec.decode(BinaryCodec.encode(b));
+
+        // the header fields are all in the block hash
+        assertEquals(Hashing.hash(b), Hashing.hash(decoded));
+        assertEquals(b.getTransactions().size(), decoded.getTransactions().size());
+
+        Iterator<Transaction> it = decoded.getTransactions().iterator();
+        for(Transaction tx : b.getTransactions()) {
+            Transaction d = it.next();
+            assertEquals(tx.getDate(), d.getDate());
+            assertEquals(tx.getCohort(), d.getCohort());
+            assertEquals(tx.getNonce(), d.getNonce());
+        }
+        assertEquals(b.getMerkleRoot(), new Miner().genMerkleRoot(decoded.getTransactions()));
+    }
+
+    private static String cohort(Random r, int bits) {
+        StringBuilder cohort = new StringBuilder();
+        for(int x = 0; x < bits; x++) {
+            cohort.append(r.nextBoolean() ? '1' : '0');
+        }
+        return cohort.toString();
+    }
+}
@@ -0,0 +1,115 @@
+import org.apache.commons.lang3.SerializationUtils;
+import java.util.Random;
+import java.util.TreeSet;
+
+/** (**FOR TESTING PURPOSES**) Compares the size and speed of Java serialization against the binary codec
+ *  usage: java CodecBenchmark [txs per block] [rounds] */
+public class CodecBenchmark {
+
+    public static void main(String[] args) {
+        int txCount = 1000;
+        int rounds = 200;
+        if(args.length > 0) {
+            txCount = Integer.parseInt(args[0]);
+        }
+        if(args.length > 1) {
+            rounds = Integer.parseInt(args[1]);
+        }
+
+        Block block = makeBlock(txCount);
+        indexBlock header = new indexBlock(block.getIndex(), block.getDifficultyLevel(), block.getTotalDifficulty(), 0, block.getDate(), block.getPreviousHash(), block.getMerkleRoot(), block.getNonce());
+
+        // check the codec gives back the same block
+        Block decoded = (Block) BinaryCodec.decode(BinaryCodec.encode(block));
+        System.out.println("block round trip matches: " + (decoded.toString().equals(block.toString()) && decoded.getTransactions().equals(block.getTransactions())));
+
+        System.out.println(String.format("\n%-28s %10s %10s", "size (bytes)", "java", "codec"));
+        System.out.println(String.format("%-28s %10d %10d", "block, " + txCount + " txs", SerializationUtils.serialize(block).length, BinaryCodec.encode(block).length));
+        System.out.println(String.format("%-28s %10d %10d", "indexBlock", SerializationUtils.serialize(header).length, BinaryCodec.encode(header).length));
+
+        // run everything twice, the first round is only JIT warm-up
+        for(int round = 0; round < 2; round++) {
+            System.out.println("\n** round " + (round + 1) + " **");
+            report("block encode, java", javaEncode(block, rounds), rounds);
+            report("block encode, codec", codecEncode(block, rounds), rounds);
+            report("block decode, java", javaDecode(SerializationUtils.serialize(block), rounds), rounds);
+            report("block decode, codec", codecDecode(BinaryCodec.encode(block), rounds), rounds);
+            report("indexBlock decode, java", javaDecode(SerializationUtils.serialize(header), rounds * 100), rounds * 100);
+            report("indexBlock decode, codec", codecDecode(BinaryCodec.encode(header), rounds * 100), rounds * 100);
+        }
+    }
+
+    private static Block makeBlock(int txCount) {
+        Random r = new Random(1);
+        TreeSet<Transaction> txs = new TreeSet<>();
+        for(int x = 0; x < txCount; x++) {
+            StringBuilder cohort = new StringBuilder();
+            for(int y = 0; y < 50; y++) {
+                cohort.append(r.nextBoolean() ? '1' : '0');
+            }
+            Transaction tx = new Transaction(cohort.toString());
+            tx.setNonce(r.nextInt(1000000));
+            txs.add(tx);
+        }
+
+        Miner miner = new Miner();
+        Block b = new Block(miner.genMerkleRoot(txs), 1, miner.hash("GENESIS"), 1, 1);
+        b.setTransactions(txs);
+        return b;
+    }
+
+    private static void report(String name, long nanos, int rounds) {
+        System.out.println(String.format("%-28s %12.1f us/op", name, nanos / 1e3 / rounds));
+    }
+
+    private static long javaEncode(Block b, int rounds) {
+        long start = System.nanoTime();
+        int size = 0;
+        for(int x = 0; x < rounds; x++) {
+            size += SerializationUtils.serialize(b).length;
+        }
+        sink(size);
+        return System.nanoTime() - start;
+    }
+
+    private static long codecEncode(Block b, int rounds) {
+        long start = System.nanoTime();
+        int size = 0;
+        for(int x = 0; x < rounds; x++) {
+            size += BinaryCodec.encode(b).length;
+        }
+        sink(size);
+        return System.nanoTime() - start;
+    }
+
+    private static long javaDecode(byte[] data, int rounds) {
+        long start = System.nanoTime();
+        int found = 0;
+        for(int x = 0; x < rounds; x++) {
+            if(SerializationUtils.deserialize(data) != null) {
+                found++;
+            }
+        }
+        sink(found);
+        return System.nanoTime() - start;
+    }
+
+    private static long codecDecode(byte[] data, int rounds) {
+        long start = System.nanoTime();
+        int found = 0;
+        for(int x = 0; x < rounds; x++) {
+            if(BinaryCodec.decode(data) != null) {
+                found++;
+            }
+        }
+        sink(found);
+        return System.nanoTime() - start;
+    }
+
+    // keeps the JIT from removing the benchmark loops
+    private static void sink(int found) {
+        if(found == -1) {
+            System.out.println(found);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/** Counts, longest shared prefixes and k-anonymous partitions of the cohort trie, checked against going through every cohort */
+public class CohortTrieTest {
+
+    @Test
+    public void countsRepeatsAndDistinctCohorts() {
+        CohortTrie trie = new CohortTrie();
+        assertTrue(trie.add("0101"));
+        assertTrue(trie.add("0101"));
+        assertTrue(trie.add("0110"));
+        assertFalse(trie.add("01x1"));
+
+        assertEquals(3, trie.size());
+        assertEquals(3, trie.count("01"));
+        assertEquals(2, trie.distinct("01"));
+        assertEquals(2, trie.count("0101"));
+        assertEquals(1, trie.distinct("0101"));
+        assertEquals(0, trie.count("1"));
+
+        assertTrue(trie.remove("0101"));
+        assertEquals(2, trie.distinct("01"));
+        assertTrue(trie.remove("0101"));
+        assertEquals(1, trie.distinct("01"));
+        assertFalse(trie.remove("0101"));
+        assertFalse(trie.remove("1111"));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void longestPrefixMatchesAScan() {
+        Random r = new Random(1);
+        CohortTrie trie = new CohortTrie();
+        List<String> cohorts = new ArrayList<>();
+        for(int x = 0; x < 2000; x++) {
+            String c = cohort(r, 20);
+            cohorts.add(c);
+            trie.add(c);
+        }
+        // some repeats, which don't count towards k
+        for(int x = 0; x < 200; x++) {
+            String c = cohorts.get(r.nextInt(cohorts.size()));
+            cohorts.add(c);
+            trie.add(c);
+        }
+
+        for(int k : new int[] { 1, 2, 5, 50, 2000, 5000 }) {
+            for(int x = 0; x < 50; x++) {
+                String c = (x % 2 == 0) ? cohorts.get(r.nextInt(cohorts.size())) : cohort(r, 20);
+                assertEquals(longestPrefix(cohorts, c, k), trie.longestPrefix(c, k));
+            }
+        }
+    }
+
+    @Test
+    public void partitionMatchesASplitOfTheCohorts() {
+        Random r = new Random(2);
+        CohortTrie trie = new CohortTrie();
+        List<String> cohorts = new ArrayList<>();
+        for(int x = 0; x < 3000; x++) {
+            String c = cohort(r, 16);
+            cohorts.add(c);
+            trie.add(c);
+        }
+
+        for(int k : new int[] { 1, 10, 100, 3000, 4000 }) {
+            TreeMap<String, Integer> expected = new TreeMap<>();
+            if(distinct(cohorts, "") >= k) {
+                split(cohorts, "", k, expected);
+            }
+            assertEquals(expected, trie.partition(k));
+
+            int total = 0;
+            for(Map.Entry<String, Integer> e : expected.entrySet()) {
+                total += e.getValue();
+            }
+            assertEquals(expected.isEmpty() ? 0 : cohorts.size(), total);
+        }
+    }
+
+    @Test
+    public void removedCohortsLeaveNoTrace() {
+        Random r = new Random(3);
+        CohortTrie trie = new CohortTrie();
+        CohortTrie fresh = new CohortTrie();
+        List<String> kept = new ArrayList<>();
+        for(int x = 0; x < 1000; x++) {
+            String c = cohort(r, 12);
+            trie.add(c);
+            if(r.nextBoolean()) {
+                kept.add(c);
+                fresh.add(c);
+            }
+            else {
+                trie.add(c);
+                trie.remove(c);
+                trie.remove(c);
+            }
+        }
+
+        assertEquals(fresh.size(), trie.size());
+        assertEquals(fresh.partition(5), trie.partition(5));
+        for(String c : kept) {
+            assertEquals(fresh.longestPrefix(c, 3), trie.longestPrefix(c, 3));
+        }
+    }
+
+    /** PrefixLSH over a list: split a prefix only if both children are shared by at least k distinct cohorts */
+    private static void split(List<String> cohorts, String prefix, int k, TreeMap<String, Integer> result) {
+        if(distinct(cohorts, prefix + "0") >= k && distinct(cohorts, prefix + "1") >= k) {
+            split(cohorts, prefix + "0", k, result);
+            split(cohorts, prefix + "1", k, result);
+            return;
+        }
+        int count = 0;
+        for(String c : cohorts) {
+            if(c.startsWith(prefix)) {
+                count++;
+            }
+        }
+        result.put(prefix, count);
+    }
+
+    private static int longestPrefix(List<String> cohorts, String cohort, int k) {
+        if(distinct(cohorts, "") < k) {
+            return -1;
+        }
+        int length = 0;
+        while(length < cohort.length() && distinct(cohorts, cohort.substring(0, length + 1)) >= k) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int distinct(List<String> cohorts, String prefix) {
+        TreeSet<String> set = new TreeSet<>();
+        for(String c : cohorts) {
+            if(c.startsWith(prefix)) {
+                set.add(c);
+            }
+        }
+        return set.size();
+    }
+
+    private static String cohort(Random r, int bits) {
+        StringBuilder cohort = new StringBuilder();
+        for(int x = 0; x < bits; x++) {
+            cohort.append(r.nextBoolean() ? '1' : '0');
+        }
+        return cohort.toString();
+    }
+}
@@ -0,0 +1,130 @@
+import java.math.BigInteger;
+import java.security.MessageDigest;
+
+/** (**FOR TESTING PURPOSES**) Compares the proof-of-work hashrate of the old toString() hashing against the midstate hashing
+ *  usage: java HashBenchmark [attempts] */
+public class HashBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int attempts = 2000000;
+        if(args.length > 0) {
+            attempts = Integer.parseInt(args[0]);
+        }
+
+        Miner miner = new Miner();
+        Block block = new Block(miner.hash("merkle"), 1, "GENESIS", 1, 1);
+        Transaction tx = new Transaction("01011010011100101011010101001011100101010111010101");
+
+        // check the midstate path produces the same transaction hash as hashing toString()
+        System.out.println("tx hashes match: " + legacyHash(tx.toString()).equals(BlockLSH.hash(tx)));
+
+        // run everything twice, the first round is only JIT warm-up
+        for(int round = 0; round < 2; round++) {
+            System.out.println("\n** round " + (round + 1) + " **");
+            report("block, toString()", legacyBlock(block, attempts), attempts);
+            report("block, full binary header", fullHeader(block, attempts), attempts);
+            report("block, midstate", midstateBlock(block, attempts), attempts);
+            report("tx, toString()", legacyTransaction(tx, attempts), attempts);
+            report("tx, midstate", midstateTransaction(tx, attempts), attempts);
+        }
+    }
+
+    private static void report(String name, long nanos, int attempts) {
+        System.out.println(String.format("%-28s %12.0f hashes/sec", name, attempts / (nanos / 1e9)));
+    }
+
+    /** The hashing done per nonce attempt before the binary header was introduced */
+    private static String legacyHash(String s) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] bytes = md.digest(s.getBytes());
+        BigInteger numb = new BigInteger(1, bytes);
+        String hashtext = numb.toString(16);
+        while (hashtext.length() < 64) {
+            hashtext = "0" + hashtext;
+        }
+        return hashtext;
+    }
+
+    private static long legacyBlock(Block b, int attempts) throws Exception {
+        long start = System.nanoTime();
+        int found = 0;
+        for(int x = 0; x < attempts; x++) {
+            b.nonce = x;
+            if(legacyHash(b.toString()).substring(0, 1).equals("0")) {
+                found++;
+            }
+        }
+        sink(found);
+        return System.nanoTime() - start;
+    }
+
+    private static long fullHeader(Block b, int attempts) throws Exception {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        byte[] header = new byte[Hashing.HEADER_SIZE];
+        byte[] out = new byte[Hashing.HASH_SIZE];
+        Hashing.writeHeader(b, header);
+
+        long start = System.nanoTime();
+        int found = 0;
+        for(int x = 0; x < attempts; x++) {
+            Hashing.putLong(header, Hashing.NONCE_OFFSET, x);
+            md.update(header, 0, Hashing.HEADER_SIZE);
+            md.digest(out, 0, Hashing.HASH_SIZE);
+            if(Hashing.leadingZeroNibbles(out) >= 1) {
+                found++;
+            }
+        }
+        sink(found);
+        return System.nanoTime() - start;
+    }
+
+    private static long midstateBlock(Block b, int attempts) {
+        Hashing.hashContext ctx = Hashing.context();
+        ctx.loadHeader(b);
+
+        long start = System.nanoTime();
+        int found = 0;
+        for(int x = 0; x < attempts; x++) {
+            if(Hashing.leadingZeroNibbles(ctx.digest(x)) >= 1) {
+                found++;
+            }
+        }
+        sink(found);
+        return System.nanoTime() - start;
+    }
+
+    private static long legacyTransaction(Transaction tx, int attempts) throws Exception {
+        long start = System.nanoTime();
+        int found = 0;
+        for(int x = 0; x < attempts; x++) {
+            tx.setNonce(x);
+            if(legacyHash(tx.toString()).substring(0, 1).equals("0")) {
+                found++;
+            }
+        }
+        sink(found);
+        return System.nanoTime() - start;
+    }
+
+    private static long midstateTransaction(Transaction tx, int attempts) {
+        Hashing.hashContext ctx = Hashing.context();
+        ctx.loadTransaction(tx);
+
+        long start = System.nanoTime();
+        int found = 0;
+        for(int x = 0; x < attempts; x++) {
+            if(Hashing.leadingZeroNibbles(ctx.digestTransaction(x)) >= 1) {
+                found++;
+            }
+        }
+        sink(found);
+        return System.nanoTime() - start;
+    }
+
+    // keeps the JIT from removing the benchmark loops
+    private static void sink(int found) {
+        if(found == -1) {
+            System.out.println(found);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+/** Merkle roots, branches and the accumulator of the mempool (see MerkleTree and MerkleAccumulator) */
+public class MerkleTreeTest {
+    private static final int H = Hashing.HASH_SIZE;
+
+    @Test
+    public void everyBranchVerifies() {
+        Random r = new Random(1);
+        for(int count : new int[] { 1, 2, 3, 5, 8, 100, 1000 }) {
+            byte[] leaves = leaves(r, count);
+            byte[] root = MerkleTree.root(leaves, count);
+
+            for(int index = 0; index < count; index++) {
+                MerkleTree.merkleProof proof = MerkleTree.branch("block", "tx", leaves, count, index);
+                assertTrue("leaf " + index + " of " + count, MerkleTree.verify(leaf(leaves, index), proof, root));
+            }
+        }
+    }
+
+    @Test
+    public void singleLeafIsItsOwnRoot() {
+        byte[] leaves = leaves(new Random(2), 1);
+        assertArrayEquals(leaves, MerkleTree.root(leaves, 1));
+        assertEquals(0, MerkleTree.branch("block", "tx", leaves, 1, 0).getBits().length);
+    }
+
+    @Test
+    public void wrongBranchesDontVerify() {
+        int count = 100;
+        byte[] leaves = leaves(new Random(3), count);
+        byte[] root = MerkleTree.root(leaves, count);
+        MerkleTree.merkleProof proof = MerkleTree.branch("block", "tx", leaves, count, 10);
+
+        // another leaf, another root
+        assertFalse(MerkleTree.verify(leaf(leaves, 11), proof, root));
+        assertFalse(MerkleTree.verify(leaf(leaves, 10), proof, MerkleTree.root(leaves, count - 1)));
+
+        // a changed sibling
+        byte[] siblings = proof.getSiblings().clone();
+        siblings[0] ^= 1;
+        assertFalse(MerkleTree.verify(leaf(leaves, 10), new MerkleTree.merkleProof("block", "tx", proof.getBits(), siblings), root));
+
+        // split bits that don't go up in order
+        byte[] bits = proof.getBits().clone();
+        byte top = bits[bits.length - 1];
+        bits[bits.length - 1] = bits[0];
+        bits[0] = top;
+        assertFalse(MerkleTree.verify(leaf(leaves, 10), new MerkleTree.merkleProof("block", "tx", bits, proof.getSiblings()), root));
+
+        // a sibling too few
+        byte[] shorter = Arrays.copyOf(proof.getSiblings(), proof.getSiblings().length - H);
+        assertFalse(MerkleTree.verify(leaf(leaves, 10), new MerkleTree.merkleProof("block", "tx", proof.getBits(), shorter), root));
+    }
+
+    @Test
+    public void parallelRootIsTheSame() {
+        int count = 5000;
+        byte[] leaves = leaves(new Random(4), count);
+        byte[] root = MerkleTree.root(leaves, count);
+
+        int threshold = MerkleTree.parallelThreshold;
+        try {
+            MerkleTree.parallelThreshold = 16;
+            assertArrayEquals(root, MerkleTree.root(leaves, count));
+        } finally {
+            MerkleTree.parallelThreshold = threshold;
+        }
+    }
+
+    @Test
+    public void accumulatorFollowsTheTree() {
+        Random r = new Random(5);
+        MerkleAccumulator acc = new MerkleAccumulator();
+        TreeSet<String> set = new TreeSet<>();
+        List<byte[]> live = new ArrayList<>();
+        assertNull(acc.root());
+
+        for(int step = 0; step < 3000; step++) {
+            if(live.isEmpty() || r.nextInt(3) > 0) {
+                byte[] digest = new byte[H];
+                r.nextBytes(digest);
+                assertTrue(acc.add(digest));
+                assertFalse(acc.add(digest));
+                live.add(digest);
+                set.add(Hashing.toHex(digest));
+            }
+            else {
+                byte[] digest = live.remove(r.nextInt(live.size()));
+                assertTrue(acc.remove(digest));
+                assertFalse(acc.remove(digest));
+                set.remove(Hashing.toHex(digest));
+            }
+
+            if(step % 50 == 0) {
+                assertEquals(set.size(), acc.size());
+                assertArrayEquals(MerkleTree.root(sorted(set), set.size()), acc.root());
+            }
+        }
+
+        // down to one leaf and back to none
+        while(live.size() > 1) {
+            set.remove(Hashing.toHex(live.get(0)));
+            acc.remove(live.remove(0));
+        }
+        assertArrayEquals(live.get(0), acc.root());
+        acc.remove(live.get(0));
+        assertNull(acc.root());
+    }
+
+    @Test
+    public void minerProofMatchesTheBlockRoot() {
+        Random r = new Random(6);
+        Miner miner = new Miner();
+        TreeSet<Transaction> txs = new TreeSet<>();
+        for(int x = 0; x < 300; x++) {
+            txs.add(new Transaction("2021-06-01 12:00:00.000", Long.toBinaryString(r.nextLong()), x));
+        }
+        Block b = new Block(miner.genMerkleRoot(txs), 1, "GENESIS", 1, 1);
+        b.setTransactions(txs);
+
+        byte[] root = Hashing.fromHex(b.getMerkleRoot());
+        for(Transaction tx : txs) {
+            MerkleTree.merkleProof proof = miner.getMerkleProof("block", b, Hashing.hash(tx));
+            assertTrue(MerkleTree.verify(tx.getDigest(), proof, root));
+        }
+        assertNull(miner.getMerkleProof("block", b, miner.hash("not in the block")));
+    }
+
+    private static byte[] leaves(Random r, int count) {
+        TreeSet<String> set = new TreeSet<>();
+        while(set.size() < count) {
+            byte[] digest = new byte[H];
+            r.nextBytes(digest);
+            set.add(Hashing.toHex(digest));
+        }
+        return sorted(set);
+    }
+
+    /** Returns the digests in TreeSet order (the hex Strings sort the same as the digests) */
+    private static byte[] sorted(TreeSet<String> set) {
+        byte[] leaves = new byte[set.size() * H];
+        int x = 0;
+        for(String hex : set) {
+            System.arraycopy(Hashing.fromHex(hex), 0, leaves, H * x++, H);
+        }
+        return leaves;
+    }
+
+    private static byte[] leaf(byte[] leaves, int index) {
+        return Arrays.copyOfRange(leaves, index * H, (index + 1) * H);
+    }
+}
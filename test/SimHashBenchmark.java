@@ -0,0 +1,51 @@
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+
+/** (**FOR TESTING PURPOSES**) Times the in-process SimHash of a host list and checks it against the Go simulator
+ *  usage: java SimHashBenchmark [host list .json] [rounds]
+ *  The check runs 'go run main.go <file>' and is skipped if Go isn't installed */
+public class SimHashBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String file = "host_list.json";
+        int rounds = 10000;
+        if(args.length > 0) {
+            file = args[0];
+        }
+        if(args.length > 1) {
+            rounds = Integer.parseInt(args[1]);
+        }
+
+        long hash = SimHash.hashFile(file, SimHash.FLOC_BITS);
+        System.out.println("java SimHash:  " + hash + " (" + BlockLSH.getCohortBits(Long.toString(hash)) + ")");
+
+        // run everything twice, the first round is only JIT warm-up
+        for(int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for(int x = 0; x < rounds; x++) {
+                hash ^= SimHash.hashFile(file, SimHash.FLOC_BITS);
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.println(String.format("round %d: %8.1f us per hash (%d hashes)", round + 1, nanos / 1e3 / rounds, rounds));
+        }
+
+        try {
+            long start = System.nanoTime();
+            Process p = Runtime.getRuntime().exec(new String[] {"go", "run", "main.go", file});
+            BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream()));
+            String line = reader.readLine();
+            p.waitFor();
+            long nanos = System.nanoTime() - start;
+
+            if(line == null) {
+                System.out.println("go run main.go printed nothing, not compared");
+                return;
+            }
+            long goHash = Long.parseLong(line.trim());
+            System.out.println(String.format("go SimHash:    %d (%.1f ms)", goHash, nanos / 1e6));
+            System.out.println((goHash == SimHash.hashFile(file, SimHash.FLOC_BITS)) ? "MATCH" : "MISMATCH");
+        } catch(Exception e) {
+            System.out.println("go not available, not compared; " + e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+import org.codehaus.jackson.map.ObjectMapper;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** (**FOR TESTING PURPOSES**) Checks SimHash against the vectors the Go simulator wrote to 'simhash_vectors.txt', no Go needed
+ *  usage: java SimHashVectors
+ *  The vectors are CityHash64 and CityHash64WithSeed over lengths 0 to 256, randomGaussian over a grid of (dimension, hash),
+ *  the eTLD+1 of every host and the SimHash of 'host_list.json' and of every list in 'host_lists'.
+ *  packages/floc/vectors_test.go generates the same lines, 'FLOC_WRITE_VECTORS=1 go test ./packages/floc' writes the file
+ *  (only Go writes it, lines starting with '#' aren't compared, they say who wrote the file and which public suffix list
+ *  was used). Exits with 1 if a vector doesn't match and with 2 if the file wasn't written by Go */
+public class SimHashVectors {
+    private static final String FILE = "simhash_vectors.txt";
+    private static final int MAX_LEN = 256;
+
+    public static void main(String[] args) throws Exception {
+        List<String> lines = vectors();
+
+        List<String> expected = new ArrayList<>();
+        boolean fromGo = false;
+        for(String line : Files.readAllLines(Paths.get(FILE), StandardCharsets.UTF_8)) {
+            if(line.startsWith("#")) {
+                System.out.println(line);
+                fromGo |= line.startsWith("# written by: go test");
+            } else {
+                expected.add(line);
+            }
+        }
+
+        int bad = 0;
+        if(expected.size() != lines.size()) {
+            System.out.println(lines.size() + " vectors, expected " + expected.size());
+            bad++;
+        }
+        for(int x = 0; x < Math.min(expected.size(), lines.size()); x++) {
+            if(!expected.get(x).equals(lines.get(x))) {
+                if(bad < 20) {
+                    System.out.println("got '" + lines.get(x) + "', expected '" + expected.get(x) + "'");
+                }
+                bad++;
+            }
+        }
+
+        System.out.println((bad == 0) ? "all " + lines.size() + " vectors MATCH" : bad + " vectors MISMATCH");
+        if(bad > 0) {
+            System.exit(1);
+        }
+        if(!fromGo) {
+            System.out.println("the vectors weren't written by Go, regenerate them with 'FLOC_WRITE_VECTORS=1 go test ./packages/floc'");
+            System.exit(2);
+        }
+    }
+
+    /** Generates the vector lines, in the same order and format as vectors() of packages/floc/vectors_test.go */
+    static List<String> vectors() throws Exception {
+        List<String> lines = new ArrayList<>();
+
+        byte[] data = new byte[MAX_LEN];
+        for(int k = 0; k < MAX_LEN; k++) {
+            data[k] = (byte) (k * 37 + 11);
+        }
+        for(int n = 0; n <= MAX_LEN; n++) {
+            lines.add(String.format("city %d %016x", n, SimHash.cityHash64(Arrays.copyOf(data, n))));
+        }
+        for(long seed = 1; seed <= 2; seed++) {
+            for(int n = 0; n <= MAX_LEN; n++) {
+                lines.add(String.format("seed %d %d %016x", seed, n, SimHash.cityHash64WithSeed(Arrays.copyOf(data, n), seed)));
+            }
+        }
+
+        // the hashes of the grid: the edges of uint64 and hashes like the ones of domains
+        List<Long> js = new ArrayList<>(Arrays.asList(0L, 1L, 2L, -1L, Long.MIN_VALUE));
+        for(int n = 0; n < 32; n++) {
+            js.add(SimHash.cityHash64(("j" + n).getBytes(StandardCharsets.UTF_8)));
+        }
+        for(long i = 0; i < SimHash.FLOC_BITS; i++) {
+            for(long j : js) {
+                lines.add(String.format("gauss %d %016x %016x", i, j, Double.doubleToRawLongBits(SimHash.randomGaussian(i, j))));
+            }
+        }
+
+        for(String file : hostLists()) {
+            String[] hosts = new ObjectMapper().readValue(new File(file), String[].class);
+            for(String host : hosts) {
+                lines.add("etld1 " + host + " " + PublicSuffix.effectiveTLDPlusOne(host));
+            }
+            lines.add("simhash " + file + " " + Long.toUnsignedString(SimHash.hashFile(file, SimHash.FLOC_BITS)));
+        }
+        return lines;
+    }
+
+    /** Returns 'host_list.json' and the .json files of 'host_lists' in name order */
+    private static List<String> hostLists() {
+        List<String> files = new ArrayList<>();
+        files.add("host_list.json");
+
+        String[] names = new File("host_lists").list();
+        if(names != null) {
+            Arrays.sort(names);
+            for(String name : names) {
+                if(name.endsWith(".json")) {
+                    files.add("host_lists/" + name);
+                }
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,168 @@
+import org.iq80.leveldb.DB;
+import org.iq80.leveldb.Options;
+import static org.iq80.leveldb.impl.Iq80DBFactory.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+
+/** (**FOR TESTING PURPOSES**) Compares storeBlock/getCohorts throughput when a database is reopened on every access against shared handles,
+ *  and synced block writes one by one against group commits of the block writer
+ *  usage: java StorageBenchmark [blocks] [txs per block]
+ *  Run it from an empty directory, it creates (and deletes) its own index database, block files, myCohortID and cohortPartition files, and a key pair if there is none */
+public class StorageBenchmark {
+    private static final PrintStream console = System.out;
+
+    public static void main(String[] args) {
+        int blocks = 50;
+        int txCount = 100;
+        if(args.length > 0) {
+            blocks = Integer.parseInt(args[0]);
+        }
+        if(args.length > 1) {
+            txCount = Integer.parseInt(args[1]);
+        }
+
+        if(new File("index").exists() || new File(BlockFiles.fileName(0)).exists()) {
+            console.println("a chain is already stored here, run the benchmark from an empty directory");
+            return;
+        }
+
+        // the chain needs a key pair and a cohort hash to work out the cohort ID of each new tip
+        Main.network.generateRSAKey();
+        BlockLSH.myCohortHash = randomCohort(new Random(2));
+
+        // run everything twice, the first round is only JIT warm-up
+        for(int round = 0; round < 2; round++) {
+            console.println("\n** round " + (round + 1) + " **");
+            run("reopen per access", true, false, false, blocks, txCount);
+            run("shared handles", false, false, false, blocks, txCount);
+            run("synced, one by one", false, true, false, blocks, txCount);
+            run("synced, group commit", false, true, true, blocks, txCount);
+        }
+    }
+
+    private static void run(String name, boolean reopen, boolean syncWrites, boolean grouped, int blocks, int txCount) {
+        Blockchain.syncWrites = syncWrites;
+        Miner miner = new Miner();
+        Random r = new Random(1);
+
+        // storeBlock and getCohorts print every step, which would be measured as well
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }));
+
+        Blockchain chain = reopen ? new reopeningChain() : new Blockchain();
+        List<String> hashes = new ArrayList<>();
+        List<Block> chainBlocks = new ArrayList<>();
+        String prevHash = "GENESIS";
+        for(int x = 0; x < blocks; x++) {
+            TreeSet<Transaction> txs = new TreeSet<>();
+            for(int y = 0; y < txCount; y++) {
+                txs.add(new Transaction(randomCohort(r)));
+            }
+            Block b = new Block(miner.genMerkleRoot(txs), x + 1, prevHash, 1, x + 1);
+            b.setTransactions(txs);
+            prevHash = miner.hash(b);
+            hashes.add(prevHash);
+            chainBlocks.add(b);
+        }
+
+        long storeNanos = System.nanoTime();
+        if(grouped) {
+            // queue everything like syncBlocks() does, then wait for the writer
+            CompletableFuture<Void> last = null;
+            for(int x = 0; x < blocks; x++) {
+                last = chain.submitBlock(hashes.get(x), chainBlocks.get(x));
+            }
+            last.join();
+        }
+        else {
+            for(int x = 0; x < blocks; x++) {
+                chain.storeBlock(hashes.get(x), chainBlocks.get(x));
+            }
+        }
+        storeNanos = System.nanoTime() - storeNanos;
+        chain.closeWriter();
+
+        int reads = 10;
+        long start = System.nanoTime();
+        for(int x = 0; x < reads; x++) {
+            chain.getCohorts();
+        }
+        long cohortNanos = System.nanoTime() - start;
+
+        System.setOut(console);
+        console.println(String.format("%-20s storeBlock %10.1f blocks/sec    getCohorts %8.2f chains/sec (%d blocks)",
+                name, blocks / (storeNanos / 1e9), reads / (cohortNanos / 1e9), blocks));
+
+        Storage.closeAll();
+        delete(new File("index"));
+        for(int n = 0; n <= chain.getFileNum(); n++) {
+            delete(new File(BlockFiles.fileName(n)));
+        }
+        new File("myCohortID").delete();
+        new File("cohortPartition").delete();
+    }
+
+    private static String randomCohort(Random r) {
+        StringBuilder cohort = new StringBuilder();
+        for(int x = 0; x < 50; x++) {
+            cohort.append(r.nextBoolean() ? '1' : '0');
+        }
+        return cohort.toString();
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if(children != null) {
+            for(File c : children) {
+                delete(c);
+            }
+        }
+        f.delete();
+    }
+}
+
+/** A chain that closes its index database as soon as no operation is using it and opens it again on the next one, like
+ *  older versions did on every access (Blockchain keeps one shared handle open, see Storage) */
+class reopeningChain extends Blockchain {
+    // no initializers, Blockchain() already opens and closes the database before they would run
+    private DB db;
+    private int users;
+
+    @Override
+    public synchronized DB getIndexDB() {
+        if(users == 0) {
+            try {
+                Options options = new Options();
+                options.createIfMissing(true);
+                db = factory.open(new File("index"), options);
+            } catch(IOException ioe) {
+                System.out.println("OPEN index IOE ERROR: " + ioe);
+            }
+        }
+        users++;
+        return db;
+    }
+
+    @Override
+    public synchronized void finish(DB database) {
+        if(--users > 0) {
+            return;
+        }
+        try {
+            db.close();
+        } catch(IOException ioe) {
+            System.out.println("CLOSE DB IOE ERROR: " + ioe);
+        }
+        db = null;
+    }
+}
@@ -0,0 +1,143 @@
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** Expiry times of the timing wheel, including items far enough ahead to start on the higher levels */
+public class TimingWheelTest {
+    private static final long TICK = 1000;
+
+    @Test
+    public void itemsExpireAtTheirTime() {
+        Random r = new Random(1);
+        TimingWheel<Long> wheel = new TimingWheel<>(TICK);
+        final List<Long> fired = new ArrayList<>();
+        TimingWheel.ExpiryListener<Long> listener = new TimingWheel.ExpiryListener<Long>() {
+            @Override
+            public void expired(Long expires) {
+                fired.add(expires);
+            }
+        };
+
+        long start = 1000000000L;
+        wheel.advance(start, listener);
+        List<Long> pending = new ArrayList<>();
+        for(long ahead : new long[] { 0, 1, 999, 1000, 1001, 63999, 64000, 4096000, 4096001, 262144000 }) {
+            pending.add(start + ahead);
+        }
+        for(int x = 0; x < 1000; x++) {
+            pending.add(start + (long) (r.nextDouble() * 300000000L));
+        }
+        for(long expires : pending) {
+            wheel.schedule(expires, expires);
+        }
+        assertEquals(pending.size(), wheel.size());
+
+        // steps of different lengths, an item fires on the first advance that reaches its time
+        long now = start;
+        while(!pending.isEmpty()) {
+            now += 1 + r.nextInt(r.nextBoolean() ? 500 : 5000000);
+            fired.clear();
+            wheel.advance(now, listener);
+
+            List<Long> due = new ArrayList<>();
+            for(long expires : pending) {
+                if(expires <= now) {
+                    due.add(expires);
+                }
+            }
+            Collections.sort(due);
+            Collections.sort(fired);
+            assertEquals(due, fired);
+
+            pending.removeAll(due);
+            assertEquals(pending.size(), wheel.size());
+        }
+    }
+
+    @Test
+    public void nothingIsLateOrEarly() {
+        // advancing 1 ms at a time, every item fires at exactly its time
+        TimingWheel<Long> wheel = new TimingWheel<>(10);
+        final Map<Long, Long> firedAt = new HashMap<>();
+        final long[] now = { 0 };
+        TimingWheel.ExpiryListener<Long> listener = new TimingWheel.ExpiryListener<Long>() {
+            @Override
+            public void expired(Long expires) {
+                firedAt.put(expires, now[0]);
+            }
+        };
+
+        Random r = new Random(2);
+        wheel.advance(0, listener);
+        for(int x = 0; x < 500; x++) {
+            long expires = r.nextInt(50000);
+            wheel.schedule(expires, expires);
+        }
+        for(now[0] = 0; now[0] <= 50000; now[0]++) {
+            wheel.advance(now[0], listener);
+        }
+
+        assertEquals(0, wheel.size());
+        for(Map.Entry<Long, Long> e : firedAt.entrySet()) {
+            assertEquals(e.getKey(), e.getValue());
+        }
+    }
+
+    @Test
+    public void cancelledItemsDontExpire() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK);
+        final List<String> fired = new ArrayList<>();
+        TimingWheel.ExpiryListener<String> listener = new TimingWheel.ExpiryListener<String>() {
+            @Override
+            public void expired(String item) {
+                fired.add(item);
+            }
+        };
+
+        wheel.advance(0, listener);
+        wheel.schedule("kept", 5000);
+        wheel.schedule("also kept", 5000);
+        assertTrue(wheel.cancel(wheel.schedule("far", 10000000)));
+        assertEquals(2, wheel.size());
+
+        wheelTimer<String> cancelled = wheel.schedule("cancelled too", 7000);
+        assertTrue(wheel.cancel(cancelled));
+        assertFalse(wheel.cancel(cancelled));
+
+        wheel.advance(20000000, listener);
+        assertEquals(Arrays.asList("kept", "also kept"), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void pastItemsExpireOnTheNextAdvance() {
+        TimingWheel<String> wheel = new TimingWheel<>(TICK);
+        final List<String> fired = new ArrayList<>();
+        TimingWheel.ExpiryListener<String> listener = new TimingWheel.ExpiryListener<String>() {
+            @Override
+            public void expired(String item) {
+                fired.add(item);
+            }
+        };
+
+        wheel.advance(100000, listener);
+        wheel.schedule("past", 5000);
+        wheel.advance(100000, listener);
+        assertEquals(1, fired.size());
+
+        // cleared items are dropped without being told about
+        wheel.schedule("cleared", 200000);
+        wheel.clear();
+        wheel.advance(300000, listener);
+        assertEquals(1, fired.size());
+        assertEquals(0, wheel.size());
+    }
+}